@@ -0,0 +1,80 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.client;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** The capabilities provided by a capabilities endpoint, as
+ *  parsed by the {@link CapabilitiesClient}. Immutable.
+ */
+public final class Capabilities {
+
+    /** Root key of the JSON output of capabilities endpoints */
+    public static final String ROOT_KEY = "org.apache.sling.capabilities";
+
+    /** Key of the object that contains the capabilities, by namespace */
+    public static final String DATA_KEY = "data";
+
+    /** Key of the array of namespaces that were omitted as the server's latency budget ran out */
+    public static final String OMITTED_KEY = "omitted";
+
+    private final Map<String, Map<String, Object>> data;
+    private final List<String> omitted;
+    private final String etag;
+
+    Capabilities(Map<String, Map<String, Object>> data, List<String> omitted, String etag) {
+        this.data = Collections.unmodifiableMap(data);
+        this.omitted = Collections.unmodifiableList(omitted);
+        this.etag = etag;
+    }
+
+    /** @return the namespaces that are present, limited to the ones
+     *  that the client asked for.
+     */
+    public Set<String> getNamespaces() {
+        return data.keySet();
+    }
+
+    /** @return the capabilities of the supplied namespace, as read-only
+     *  key/value pairs, or null if that namespace is not present.
+     */
+    public Map<String, Object> getValues(String namespace) {
+        return data.get(namespace);
+    }
+
+    /** @return the namespaces that the server omitted as its latency
+     *  budget ran out, empty if none.
+     */
+    public List<String> getOmitted() {
+        return omitted;
+    }
+
+    /** @return the ETag of the response that provided these capabilities, null if none */
+    public String getETag() {
+        return etag;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " " + data;
+    }
+}
@@ -0,0 +1,310 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.LongSupplier;
+
+/** Client for capabilities endpoints, meant to be shared by all
+ *  the consumers of an endpoint in a JVM.
+ *
+ *  The last response is cached for a configurable max age, and
+ *  refreshed in the background when a request happens close to the
+ *  end of that max age. Refreshes use conditional requests based on
+ *  the ETag of the cached response, and concurrent requests are
+ *  coalesced into a single HTTP request.
+ *
+ *  Only the selected namespaces are requested, using the fields
+ *  parameter of the endpoint, and materialized when parsing the
+ *  response.
+ */
+public class CapabilitiesClient {
+
+    static final String IF_NONE_MATCH = "If-None-Match";
+    static final String ETAG = "ETag";
+
+    /** Asks the endpoint for an ETag, which it otherwise only provides for cacheable responses */
+    static final String ETAG_REQUEST_HEADER = "Sling-Capabilities-ETag";
+    static final String FIELDS_PARAM = "fields";
+
+    private final URI uri;
+    private final HttpClient httpClient;
+    private final Map<String, String> headers;
+    private final Duration timeout;
+    private final long maxAgeNanos;
+    private final long refreshAheadNanos;
+    private final Set<String> namespaces;
+    private final LongSupplier clock;
+
+    private volatile CachedCapabilities cached;
+    private final AtomicReference<CompletableFuture<Capabilities>> inFlight = new AtomicReference<>();
+
+    private static class CachedCapabilities {
+        final Capabilities capabilities;
+        final long fetchedNanos;
+
+        CachedCapabilities(Capabilities capabilities, long fetchedNanos) {
+            this.capabilities = capabilities;
+            this.fetchedNanos = fetchedNanos;
+        }
+    }
+
+    /** Builds a CapabilitiesClient */
+    public static class Builder {
+        private final URI endpoint;
+        private HttpClient httpClient;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private Duration timeout = Duration.ofSeconds(10);
+        private Duration maxAge = Duration.ofSeconds(60);
+        private Duration refreshAhead = Duration.ofSeconds(10);
+        private Set<String> namespaces;
+        private LongSupplier clock = System::nanoTime;
+
+        private Builder(URI endpoint) {
+            if(!"http".equals(endpoint.getScheme()) && !"https".equals(endpoint.getScheme())) {
+                throw new IllegalArgumentException("Invalid endpoint URL, must be http or https: " + endpoint);
+            }
+            this.endpoint = endpoint;
+        }
+
+        /** Use the supplied HttpClient instead of a default one */
+        public Builder httpClient(HttpClient httpClient) {
+            this.httpClient = httpClient;
+            return this;
+        }
+
+        /** Add a header to all requests, for example for authentication */
+        public Builder header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        /** Max time to wait for a response, 10 seconds by default */
+        public Builder timeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        /** How long a response is used before requesting the endpoint
+         *  again, 60 seconds by default.
+         */
+        public Builder maxAge(Duration maxAge) {
+            this.maxAge = maxAge;
+            return this;
+        }
+
+        /** Requests that happen within this time before the end of the
+         *  max age start a background refresh, and get the cached
+         *  response without waiting for it. 10 seconds by default,
+         *  zero disables refresh-ahead.
+         */
+        public Builder refreshAhead(Duration refreshAhead) {
+            this.refreshAhead = refreshAhead;
+            return this;
+        }
+
+        /** Request and materialize only the supplied namespaces,
+         *  instead of all the namespaces of the endpoint.
+         */
+        public Builder namespaces(String ... namespaces) {
+            this.namespaces = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(namespaces)));
+            return this;
+        }
+
+        /** Clock used for the max age, in nanoseconds */
+        Builder clock(LongSupplier clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public CapabilitiesClient build() {
+            if(refreshAhead.compareTo(maxAge) > 0) {
+                throw new IllegalArgumentException("refreshAhead (" + refreshAhead + ") must not be longer than maxAge (" + maxAge + ")");
+            }
+            return new CapabilitiesClient(this);
+        }
+    }
+
+    /** @param endpoint the URL of a capabilities endpoint, like
+     *      http://localhost:8080/var/capabilities/caps.json
+     */
+    public static Builder builder(URI endpoint) {
+        return new Builder(endpoint);
+    }
+
+    private CapabilitiesClient(Builder b) {
+        this.uri = b.namespaces == null ? b.endpoint : withFields(b.endpoint, b.namespaces);
+        this.httpClient = b.httpClient != null ? b.httpClient : HttpClient.newBuilder()
+            .connectTimeout(b.timeout)
+            .followRedirects(HttpClient.Redirect.NEVER)
+            .build();
+        this.headers = Collections.unmodifiableMap(new LinkedHashMap<>(b.headers));
+        this.timeout = b.timeout;
+        this.maxAgeNanos = b.maxAge.toNanos();
+        this.refreshAheadNanos = b.refreshAhead.toNanos();
+        this.namespaces = b.namespaces;
+        this.clock = b.clock;
+    }
+
+    /** Add a fields parameter per namespace, escaped like JSON pointers */
+    static URI withFields(URI endpoint, Set<String> namespaces) {
+        final StringBuilder sb = new StringBuilder(endpoint.toString());
+        char sep = endpoint.getRawQuery() == null ? '?' : '&';
+        for(String ns : namespaces) {
+            final String pointer = "/" + ns.replace("~", "~0").replace("/", "~1");
+            sb.append(sep).append(FIELDS_PARAM).append('=').append(URLEncoder.encode(pointer, StandardCharsets.UTF_8));
+            sep = '&';
+        }
+        return URI.create(sb.toString());
+    }
+
+    /** Get the capabilities, from the cache if it's fresh enough
+     *  @throws IOException if the endpoint cannot be requested or
+     *      its response is invalid
+     */
+    public Capabilities get() throws IOException {
+        try {
+            return getAsync().get();
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while requesting " + uri);
+        } catch(ExecutionException ee) {
+            final Throwable cause = ee.getCause();
+            if(cause instanceof IOException) {
+                throw (IOException)cause;
+            }
+            throw new IOException("Request to " + uri + " failed: " + cause, cause);
+        }
+    }
+
+    /** Get the capabilities without blocking, from the cache if it's fresh enough */
+    public CompletableFuture<Capabilities> getAsync() {
+        final CachedCapabilities c = cached;
+        if(c != null) {
+            final long age = clock.getAsLong() - c.fetchedNanos;
+            if(age < maxAgeNanos) {
+                if(age >= maxAgeNanos - refreshAheadNanos) {
+                    // Failures are ignored, the next request after
+                    // the max age will try again and report them
+                    refresh();
+                }
+                return CompletableFuture.completedFuture(c.capabilities);
+            }
+        }
+        return refresh();
+    }
+
+    /** Discard the cached capabilities, the next request fetches them again */
+    public void invalidate() {
+        cached = null;
+    }
+
+    /** Request the endpoint, unless a request is already in flight
+     *  in which case its result is used.
+     */
+    private CompletableFuture<Capabilities> refresh() {
+        while(true) {
+            final CompletableFuture<Capabilities> current = inFlight.get();
+            if(current != null) {
+                return current;
+            }
+            final CompletableFuture<Capabilities> mine = new CompletableFuture<>();
+            if(inFlight.compareAndSet(null, mine)) {
+                fetch().whenComplete((result, t) -> {
+                    inFlight.compareAndSet(mine, null);
+                    if(t != null) {
+                        mine.completeExceptionally(unwrap(t));
+                    } else {
+                        mine.complete(result);
+                    }
+                });
+                return mine;
+            }
+        }
+    }
+
+    private static Throwable unwrap(Throwable t) {
+        if((t instanceof CompletionException || t instanceof UncheckedIOException) && t.getCause() != null) {
+            return unwrap(t.getCause());
+        }
+        return t;
+    }
+
+    private CompletableFuture<Capabilities> fetch() {
+        final CachedCapabilities c = cached;
+        final HttpRequest.Builder b = HttpRequest.newBuilder(uri)
+            .timeout(timeout)
+            .header("Accept", "application/json")
+            .header(ETAG_REQUEST_HEADER, "true")
+            .GET();
+        headers.forEach(b::header);
+        if(c != null && c.capabilities.getETag() != null) {
+            b.header(IF_NONE_MATCH, c.capabilities.getETag());
+        }
+        final CompletableFuture<HttpResponse<InputStream>> response;
+        try {
+            response = httpClient.sendAsync(b.build(), HttpResponse.BodyHandlers.ofInputStream());
+        } catch(RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return response.thenApply(resp -> {
+            final Capabilities result = toCapabilities(c, resp);
+            cached = new CachedCapabilities(result, clock.getAsLong());
+            return result;
+        });
+    }
+
+    private Capabilities toCapabilities(CachedCapabilities c, HttpResponse<InputStream> resp) {
+        try(InputStream is = resp.body()) {
+            if(resp.statusCode() == 304 && c != null) {
+                return c.capabilities;
+            }
+            if(resp.statusCode() != 200) {
+                throw new IOException("Request to " + uri + " returned HTTP status " + resp.statusCode());
+            }
+            final Reader r = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            return new CapabilitiesParser(r).parse(namespaces, resp.headers().firstValue(ETAG).orElse(null));
+        } catch(IOException ioe) {
+            throw new UncheckedIOException(ioe);
+        }
+    }
+}
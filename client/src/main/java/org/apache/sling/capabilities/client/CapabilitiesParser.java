@@ -0,0 +1,294 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.client;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Streaming parser for the JSON output of capabilities endpoints.
+ *  Only the selected namespaces are materialized, the values of the
+ *  other namespaces and any unknown keys are skipped without building
+ *  objects for them.
+ */
+class CapabilitiesParser {
+
+    private final Reader in;
+    private int next = -2;
+
+    CapabilitiesParser(Reader in) {
+        this.in = in;
+    }
+
+    /** Parse the whole input
+     *  @param namespaces the namespaces to materialize, null for all of them
+     *  @param etag the ETag of the response, stored with the result
+     */
+    Capabilities parse(Set<String> namespaces, String etag) throws IOException {
+        final Map<String, Map<String, Object>> data = new LinkedHashMap<>();
+        final List<String> omitted = new ArrayList<>();
+        expect('{');
+        if(!tryConsume('}')) {
+            do {
+                final String key = readString();
+                expect(':');
+                if(Capabilities.ROOT_KEY.equals(key)) {
+                    parseCapabilities(namespaces, data, omitted);
+                } else {
+                    skipValue();
+                }
+            } while(tryConsume(','));
+            expect('}');
+        }
+        return new Capabilities(data, omitted, etag);
+    }
+
+    private void parseCapabilities(Set<String> namespaces, Map<String, Map<String, Object>> data, List<String> omitted) throws IOException {
+        expect('{');
+        if(tryConsume('}')) {
+            return;
+        }
+        do {
+            final String key = readString();
+            expect(':');
+            if(Capabilities.DATA_KEY.equals(key)) {
+                parseData(namespaces, data);
+            } else if(Capabilities.OMITTED_KEY.equals(key)) {
+                for(Object o : (List<?>)readArray()) {
+                    omitted.add(String.valueOf(o));
+                }
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+    }
+
+    @SuppressWarnings("unchecked")
+    private void parseData(Set<String> namespaces, Map<String, Map<String, Object>> data) throws IOException {
+        expect('{');
+        if(tryConsume('}')) {
+            return;
+        }
+        do {
+            final String namespace = readString();
+            expect(':');
+            if(namespaces == null || namespaces.contains(namespace)) {
+                final Object value = readValue();
+                if(!(value instanceof Map)) {
+                    throw new IOException("Expected an object for namespace " + namespace);
+                }
+                data.put(namespace, (Map<String, Object>)value);
+            } else {
+                skipValue();
+            }
+        } while(tryConsume(','));
+        expect('}');
+    }
+
+    /** @return the next value, objects and arrays as read-only Map and List */
+    private Object readValue() throws IOException {
+        final int c = peek();
+        if(c == '{') {
+            return readObject();
+        } else if(c == '[') {
+            return readArray();
+        } else if(c == '"') {
+            return readString();
+        } else {
+            return readLiteral();
+        }
+    }
+
+    private Object readObject() throws IOException {
+        expect('{');
+        if(tryConsume('}')) {
+            return Collections.emptyMap();
+        }
+        final Map<String, Object> result = new LinkedHashMap<>();
+        do {
+            final String key = readString();
+            expect(':');
+            result.put(key, readValue());
+        } while(tryConsume(','));
+        expect('}');
+        return Collections.unmodifiableMap(result);
+    }
+
+    private Object readArray() throws IOException {
+        expect('[');
+        if(tryConsume(']')) {
+            return Collections.emptyList();
+        }
+        final List<Object> result = new ArrayList<>();
+        do {
+            result.add(readValue());
+        } while(tryConsume(','));
+        expect(']');
+        return Collections.unmodifiableList(result);
+    }
+
+    private Object readLiteral() throws IOException {
+        final String str = readToken();
+        switch(str) {
+            case "true": return Boolean.TRUE;
+            case "false": return Boolean.FALSE;
+            case "null": return null;
+            default:
+        }
+        try {
+            if(str.indexOf('.') < 0 && str.indexOf('e') < 0 && str.indexOf('E') < 0) {
+                return Long.valueOf(str);
+            }
+            return Double.valueOf(str);
+        } catch(NumberFormatException nfe) {
+            throw new IOException("Invalid JSON value: " + str);
+        }
+    }
+
+    /** Skip the next value without materializing it */
+    private void skipValue() throws IOException {
+        final int c = peek();
+        if(c == '"') {
+            skipString();
+        } else if(c == '{' || c == '[') {
+            int depth = 0;
+            do {
+                final int d = peek();
+                if(d == '"') {
+                    skipString();
+                    continue;
+                }
+                consume();
+                if(d == '{' || d == '[') {
+                    depth++;
+                } else if(d == '}' || d == ']') {
+                    depth--;
+                } else if(d < 0) {
+                    throw new IOException("Unexpected end of input");
+                }
+            } while(depth > 0);
+        } else {
+            readToken();
+        }
+    }
+
+    private String readToken() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        peek();
+        while(next >= 0 && ",:]} \t\r\n".indexOf(next) < 0) {
+            sb.append((char)next);
+            next = in.read();
+        }
+        if(sb.length() == 0) {
+            throw new IOException("Expected a JSON value");
+        }
+        return sb.toString();
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        final StringBuilder sb = new StringBuilder();
+        while(true) {
+            int c = in.read();
+            if(c < 0) {
+                throw new IOException("Unterminated string");
+            } else if(c == '"') {
+                return sb.toString();
+            } else if(c == '\\') {
+                c = in.read();
+                switch(c) {
+                    case 'b': sb.append('\b'); break;
+                    case 'f': sb.append('\f'); break;
+                    case 'n': sb.append('\n'); break;
+                    case 'r': sb.append('\r'); break;
+                    case 't': sb.append('\t'); break;
+                    case 'u':
+                        final char [] hex = new char[4];
+                        for(int i=0; i < hex.length; i++) {
+                            hex[i] = (char)in.read();
+                        }
+                        try {
+                            sb.append((char)Integer.parseInt(new String(hex), 16));
+                        } catch(NumberFormatException nfe) {
+                            throw new IOException("Invalid unicode escape: " + new String(hex));
+                        }
+                        break;
+                    default:
+                        if(c < 0) {
+                            throw new IOException("Unterminated string");
+                        }
+                        sb.append((char)c);
+                }
+            } else {
+                sb.append((char)c);
+            }
+        }
+    }
+
+    private void skipString() throws IOException {
+        expect('"');
+        while(true) {
+            final int c = in.read();
+            if(c < 0) {
+                throw new IOException("Unterminated string");
+            } else if(c == '"') {
+                return;
+            } else if(c == '\\') {
+                in.read();
+            }
+        }
+    }
+
+    /** @return the next non-whitespace character without consuming it, -1 at end of input */
+    private int peek() throws IOException {
+        if(next == -2) {
+            next = in.read();
+        }
+        while(next == ' ' || next == '\t' || next == '\r' || next == '\n') {
+            next = in.read();
+        }
+        return next;
+    }
+
+    private void consume() {
+        next = -2;
+    }
+
+    private boolean tryConsume(char c) throws IOException {
+        if(peek() == c) {
+            consume();
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws IOException {
+        final int actual = peek();
+        if(actual != c) {
+            throw new IOException("Expected '" + c + "' but got " + (actual < 0 ? "end of input" : "'" + (char)actual + "'"));
+        }
+        consume();
+    }
+}
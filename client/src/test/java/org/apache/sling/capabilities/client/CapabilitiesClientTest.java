@@ -0,0 +1,237 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.client;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/** Test the CapabilitiesClient against a local stand-in HTTP server
+ *  which serves canned capabilities output, in the format of the
+ *  capabilities servlet.
+ */
+public class CapabilitiesClientTest {
+
+    private static final Duration MAX_AGE = Duration.ofSeconds(60);
+    private static final Duration REFRESH_AHEAD = Duration.ofSeconds(10);
+    private static final String [] NAMESPACES = { "A", "B" };
+
+    private HttpServer server;
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final List<String> statuses = new CopyOnWriteArrayList<>();
+    private final List<String> fields = new CopyOnWriteArrayList<>();
+    private volatile CountDownLatch gate = new CountDownLatch(0);
+    private volatile int forcedStatus;
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/caps.json", this::serve);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void cleanup() {
+        server.stop(0);
+    }
+
+    /** @return the capabilities output for the selected namespaces,
+     *  each with three keys.
+     */
+    static String capabilitiesJson(List<String> selected) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("{\"").append(Capabilities.ROOT_KEY).append("\":{\"").append(Capabilities.DATA_KEY).append("\":{");
+        String sep = "";
+        for(String ns : NAMESPACES) {
+            if(selected.isEmpty() || selected.contains("/" + ns)) {
+                sb.append(sep).append('"').append(ns).append("\":{");
+                for(int i=0; i < 3; i++) {
+                    sb.append(i > 0 ? "," : "").append("\"KEY_").append(i).append("\":\"VALUE_").append(i).append('_').append(ns).append('"');
+                }
+                sb.append('}');
+                sep = ",";
+            }
+        }
+        return sb.append("}}}").toString();
+    }
+
+    /** Serve canned output, with an ETag and conditional requests support */
+    private void serve(HttpExchange x) throws IOException {
+        requests.incrementAndGet();
+        try {
+            gate.await(10, TimeUnit.SECONDS);
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        final List<String> f = new ArrayList<>();
+        final String query = x.getRequestURI().getRawQuery();
+        if(query != null) {
+            for(String param : query.split("&")) {
+                final int eq = param.indexOf('=');
+                if(eq > 0 && CapabilitiesClient.FIELDS_PARAM.equals(param.substring(0, eq))) {
+                    f.add(URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+            fields.addAll(f);
+        }
+        final String json = capabilitiesJson(f);
+        final String etag = "\"" + Integer.toHexString(json.hashCode()) + "\"";
+        final String ifNoneMatch = x.getRequestHeaders().getFirst(CapabilitiesClient.IF_NONE_MATCH);
+        int status = etag.equals(ifNoneMatch) ? 304 : 200;
+        if(forcedStatus > 0) {
+            status = forcedStatus;
+        }
+        statuses.add(String.valueOf(status));
+        // Like the capabilities servlet, only provide an ETag if asked for one
+        final boolean wantsETag = ifNoneMatch != null || x.getRequestHeaders().getFirst(CapabilitiesClient.ETAG_REQUEST_HEADER) != null;
+        if(wantsETag && (status == 200 || status == 304)) {
+            x.getResponseHeaders().add(CapabilitiesClient.ETAG, etag);
+        }
+        final byte [] body = status == 200 ? json.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        x.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        try(OutputStream os = x.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    private CapabilitiesClient.Builder builder() {
+        return CapabilitiesClient.builder(URI.create("http://localhost:" + server.getAddress().getPort() + "/caps.json"))
+            .maxAge(MAX_AGE)
+            .refreshAhead(REFRESH_AHEAD)
+            .clock(clock::get);
+    }
+
+    @Test
+    public void testCachingAndConditionalRequests() throws IOException {
+        final CapabilitiesClient client = builder().build();
+        final Capabilities first = client.get();
+        assertEquals("[A, B]", first.getNamespaces().toString());
+        assertEquals("VALUE_2_B", first.getValues("B").get("KEY_2"));
+        assertTrue(first.getOmitted().isEmpty());
+        assertTrue(first.getETag() != null);
+
+        // Fresh enough, no request
+        clock.addAndGet(MAX_AGE.minus(REFRESH_AHEAD).toNanos() - 1);
+        assertSame(first, client.get());
+        assertEquals(1, requests.get());
+
+        // Stale, conditional request which gets a 304
+        clock.addAndGet(MAX_AGE.toNanos());
+        assertSame(first, client.get());
+        assertEquals("[200, 304]", statuses.toString());
+
+        // After invalidation, unconditional request
+        client.invalidate();
+        final Capabilities third = client.get();
+        assertEquals(first.getETag(), third.getETag());
+        assertEquals("[200, 304, 200]", statuses.toString());
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        final CapabilitiesClient client = builder().build();
+        final Capabilities first = client.get();
+
+        // Within the refresh-ahead window, get the cached value and refresh in the background
+        gate = new CountDownLatch(1);
+        clock.addAndGet(MAX_AGE.minus(REFRESH_AHEAD).toNanos() + 1);
+        assertSame(first, client.getAsync().getNow(null));
+        assertSame(first, client.getAsync().getNow(null));
+        gate.countDown();
+
+        final long timeout = System.currentTimeMillis() + 5000;
+        while(statuses.size() < 2 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals("[200, 304]", statuses.toString());
+        assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testConcurrentRequestsAreCoalesced() throws Exception {
+        final CapabilitiesClient client = builder().build();
+        gate = new CountDownLatch(1);
+        final List<CompletableFuture<Capabilities>> futures = new ArrayList<>();
+        for(int i=0; i < 10; i++) {
+            futures.add(client.getAsync());
+        }
+        gate.countDown();
+        for(CompletableFuture<Capabilities> f : futures) {
+            assertSame(futures.get(0).get(5, TimeUnit.SECONDS), f.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, requests.get());
+    }
+
+    @Test
+    public void testSelectedNamespaces() throws IOException {
+        final Capabilities c = builder().namespaces("B").build().get();
+        assertEquals("[/B]", fields.toString());
+        assertEquals("[B]", c.getNamespaces().toString());
+        assertNull(c.getValues("A"));
+        assertEquals("VALUE_0_B", c.getValues("B").get("KEY_0"));
+    }
+
+    @Test
+    public void testErrorStatus() throws IOException {
+        forcedStatus = 503;
+        final CapabilitiesClient client = builder().build();
+        try {
+            client.get();
+            fail("Expecting an IOException");
+        } catch(IOException expected) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("503"));
+        }
+
+        // Failures are not cached
+        forcedStatus = 0;
+        assertEquals("[A, B]", client.get().getNamespaces().toString());
+        assertEquals(2, requests.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidScheme() {
+        CapabilitiesClient.builder(URI.create("file:///tmp/caps.json"));
+    }
+}
@@ -0,0 +1,102 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.client;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CapabilitiesParserTest {
+
+    private static final String JSON = "{ \"" + Capabilities.ROOT_KEY + "\" : {"
+        + "\"data\": {"
+        + "  \"A\": { \"s\": \"a \\\"quoted\\\" \\u00e9 value\", \"n\": 42, \"d\": 1.5, \"b\": true, \"z\": null },"
+        + "  \"B\": { \"list\": [ \"x\", { \"nested\": [1, 2] } ], \"skipped\": \"with } and ] inside\" },"
+        + "  \"C\": { \"empty\": {}, \"none\": [] }"
+        + "},"
+        + "\"unknown\": [ { \"a\": \"b\" } ],"
+        + "\"omitted\": [ \"D\" ]"
+        + "}, \"other\": 12 }";
+
+    private static Capabilities parse(String json, String ... namespaces) throws IOException {
+        return new CapabilitiesParser(new StringReader(json))
+            .parse(namespaces.length == 0 ? null : new HashSet<>(Arrays.asList(namespaces)), "\"etag\"");
+    }
+
+    @Test
+    public void testAllNamespaces() throws IOException {
+        final Capabilities c = parse(JSON);
+        assertEquals("[A, B, C]", c.getNamespaces().toString());
+        final Map<String, Object> a = c.getValues("A");
+        assertEquals("a \"quoted\" \u00e9 value", a.get("s"));
+        assertEquals(42L, a.get("n"));
+        assertEquals(1.5, a.get("d"));
+        assertEquals(Boolean.TRUE, a.get("b"));
+        assertTrue(a.containsKey("z"));
+        assertNull(a.get("z"));
+
+        final List<?> list = (List<?>)c.getValues("B").get("list");
+        assertEquals("x", list.get(0));
+        assertEquals(Arrays.asList(1L, 2L), ((Map<?, ?>)list.get(1)).get("nested"));
+        assertEquals("with } and ] inside", c.getValues("B").get("skipped"));
+        assertEquals(Collections.emptyMap(), c.getValues("C").get("empty"));
+        assertEquals(Collections.emptyList(), c.getValues("C").get("none"));
+
+        assertEquals(Collections.singletonList("D"), c.getOmitted());
+        assertEquals("\"etag\"", c.getETag());
+    }
+
+    @Test
+    public void testSelectedNamespaces() throws IOException {
+        final Capabilities c = parse(JSON, "C", "A", "missing");
+        assertEquals("[A, C]", c.getNamespaces().toString());
+        assertNull(c.getValues("B"));
+        assertNull(c.getValues("missing"));
+        assertEquals(42L, c.getValues("A").get("n"));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() throws IOException {
+        parse(JSON).getValues("A").put("foo", "bar");
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        assertTrue(parse("{}").getNamespaces().isEmpty());
+        assertTrue(parse("{\"" + Capabilities.ROOT_KEY + "\":{\"data\":{}}}").getNamespaces().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        parse(JSON.substring(0, JSON.length() / 2), "A");
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAnObject() throws IOException {
+        parse("{\"" + Capabilities.ROOT_KEY + "\":{\"data\":{\"A\":\"string\"}}}");
+    }
+}
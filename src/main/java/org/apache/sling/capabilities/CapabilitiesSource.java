@@ -30,6 +30,34 @@ import org.osgi.annotation.versioning.ProviderType;
  */
 @ProviderType
 public interface CapabilitiesSource {
+
+    /** Service property that declares the namespace of a CapabilitiesSource,
+     *  which must be the same as the value returned by getNamespace().
+     *  Setting it is optional but recommended, as it allows for selecting
+     *  the sources that a capabilities endpoint needs without getting the
+     *  other services, which for example avoids activating delayed components.
+     */
+    String NAMESPACE_PROPERTY = "sling.capabilities.namespace";
+
+    /** Optional service property that declares, in seconds, how long the
+     *  capabilities of a CapabilitiesSource can be cached by HTTP clients
+     *  and intermediate caches. Responses only get a Cache-Control max-age
+     *  if all the sources that they include declare this property.
+     */
+    String LIFETIME_PROPERTY = "sling.capabilities.lifetime.seconds";
+
+    /** Optional service property that declares one or more paths which
+     *  must all be readable by the ResourceResolver of a request for
+     *  this CapabilitiesSource to be included. Sources that do not meet
+     *  their access requirements are skipped without being called.
+     */
+    String REQUIRED_PATH_PROPERTY = "sling.capabilities.required.path";
+
+    /** Optional service property that declares one or more user IDs, one
+     *  of which must be the user ID of the ResourceResolver of a request
+     *  for this CapabilitiesSource to be included.
+     */
+    String REQUIRED_USER_PROPERTY = "sling.capabilities.required.user";
     
     /** @return the namespace to use to group our capabilities.
      *  That name must be unique in a given Sling instance.
@@ -42,7 +70,17 @@ public interface CapabilitiesSource {
      *  Services implementing this interface must be careful to
      *  avoid crossing trust boundaries. They should only expose data that
      * is accessible to the ResourceResolver that's passed
-     *  as a parameter.
+     *  as a parameter. The REQUIRED_PATH_PROPERTY and REQUIRED_USER_PROPERTY
+     *  service properties can be used to avoid being called at all
+     *  for users who cannot see any of our capabilities.
+     *
+     *  Values that are expensive to compute can be provided as
+     *  java.util.function.Supplier objects, which are only called
+     *  if the corresponding key is actually output. This only applies
+     *  to the values of the returned Map, not to nested values.
+     *  Suppliers are called right after this method, and a Supplier
+     *  that throws an exception fails the whole source like this
+     *  method would.
      *
      * @return a Map of capabilities
      * @param resolver used to establish the user's identity
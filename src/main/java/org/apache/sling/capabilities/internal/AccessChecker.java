@@ -0,0 +1,155 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/** Checks the AccessRequirements of CapabilitiesSources against the
+ *  ResourceResolver of a request, caching whether each required path
+ *  is readable, per user ID.
+ *
+ *  Cached results expire after a configurable time, and are invalidated
+ *  when changes happen at or above their path. As access control
+ *  changes are not always visible as resource changes, like group
+ *  membership changes, that expiry time bounds how long a stale result
+ *  can be used.
+ */
+class AccessChecker {
+
+    static final long DEFAULT_TTL_SECONDS = 60;
+    static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    /** Checks every time, without caching */
+    static final AccessChecker UNCACHED = new AccessChecker(0, 0, System::nanoTime);
+
+    /** Access control policies are stored under these nodes, changes
+     *  to them apply to their parent.
+     */
+    static final String [] POLICY_NODES = { "/rep:policy", "/rep:repoPolicy" };
+
+    private static class CachedResult {
+        final boolean readable;
+        final long expiresNanos;
+
+        CachedResult(boolean readable, long expiresNanos) {
+            this.readable = readable;
+            this.expiresNanos = expiresNanos;
+        }
+    }
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private final LongSupplier clock;
+
+    /** Cached results by required path, then by user ID */
+    private final Map<String, Map<String, CachedResult>> cache = new ConcurrentHashMap<>();
+    private final AtomicInteger entries = new AtomicInteger();
+
+    /** @param ttlSeconds how long results are cached, zero disables caching
+     *  @param maxEntries max number of cached results, the whole cache is
+     *      cleared when it's reached
+     *  @param clock provides the time in nanoseconds
+     */
+    AccessChecker(long ttlSeconds, int maxEntries, LongSupplier clock) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(0, ttlSeconds));
+        this.maxEntries = maxEntries;
+        this.clock = clock;
+    }
+
+    /** @return true if the user of the supplied resolver meets the requirements */
+    boolean isAllowed(AccessRequirements req, ResourceResolver resolver) {
+        if(req.isEmpty()) {
+            return true;
+        }
+        if(resolver == null) {
+            return false;
+        }
+        final String userId = resolver.getUserID();
+        if(!req.getUsers().isEmpty() && (userId == null || !req.getUsers().contains(userId))) {
+            return false;
+        }
+        for(String path : req.getPaths()) {
+            if(!isReadable(path, userId, resolver)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isReadable(String path, String userId, ResourceResolver resolver) {
+        if(ttlNanos == 0) {
+            return resolver.getResource(path) != null;
+        }
+        // Anonymous resolvers might not have a user ID
+        final String user = userId == null ? "" : userId;
+        final long now = clock.getAsLong();
+        final Map<String, CachedResult> byUser = cache.computeIfAbsent(path, p -> new ConcurrentHashMap<>());
+        final CachedResult cached = byUser.get(user);
+        if(cached != null && now - cached.expiresNanos < 0) {
+            return cached.readable;
+        }
+        final boolean readable = resolver.getResource(path) != null;
+        if(byUser.put(user, new CachedResult(readable, now + ttlNanos)) == null
+                && entries.incrementAndGet() > maxEntries) {
+            clear();
+        }
+        return readable;
+    }
+
+    /** Invalidate the cached results of changedPath and its descendants,
+     *  or of the parent of an access control policy node
+     */
+    void invalidate(String changedPath) {
+        if(cache.isEmpty()) {
+            return;
+        }
+        String root = changedPath;
+        for(String policy : POLICY_NODES) {
+            final int i = root.indexOf(policy);
+            if(i >= 0 && (root.length() == i + policy.length() || root.charAt(i + policy.length()) == '/')) {
+                root = i == 0 ? "/" : root.substring(0, i);
+            }
+        }
+        final String prefix = root.endsWith("/") ? root : root + "/";
+        final Iterator<Map.Entry<String, Map<String, CachedResult>>> it = cache.entrySet().iterator();
+        while(it.hasNext()) {
+            final Map.Entry<String, Map<String, CachedResult>> e = it.next();
+            if(e.getKey().equals(root) || e.getKey().startsWith(prefix)) {
+                entries.addAndGet(-e.getValue().size());
+                it.remove();
+            }
+        }
+    }
+
+    void clear() {
+        cache.clear();
+        entries.set(0);
+    }
+
+    /** @return the number of cached results */
+    int size() {
+        return entries.get();
+    }
+}
@@ -0,0 +1,88 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Access requirements that a CapabilitiesSource declares with service
+ *  properties: paths that must be readable and user IDs, one of which
+ *  must be the current one.
+ */
+class AccessRequirements {
+
+    static final AccessRequirements NONE = new AccessRequirements(null, null);
+
+    private final List<String> paths;
+    private final Set<String> users;
+
+    /** @param paths String, array or Collection of paths, null if none
+     *  @param users String, array or Collection of user IDs, null if none
+     */
+    AccessRequirements(Object paths, Object users) {
+        this.paths = Collections.unmodifiableList(new ArrayList<>(toStrings(paths)));
+        this.users = Collections.unmodifiableSet(new LinkedHashSet<>(toStrings(users)));
+    }
+
+    private static Collection<String> toStrings(Object value) {
+        final List<String> result = new ArrayList<>();
+        if(value instanceof Object[]) {
+            for(Object o : (Object[])value) {
+                add(result, o);
+            }
+        } else if(value instanceof Collection) {
+            for(Object o : (Collection<?>)value) {
+                add(result, o);
+            }
+        } else {
+            add(result, value);
+        }
+        return result;
+    }
+
+    private static void add(List<String> list, Object value) {
+        if(value != null && !value.toString().trim().isEmpty()) {
+            list.add(value.toString().trim());
+        }
+    }
+
+    /** @return true if there are no requirements */
+    boolean isEmpty() {
+        return paths.isEmpty() && users.isEmpty();
+    }
+
+    /** @return the paths that must be readable, empty if none */
+    List<String> getPaths() {
+        return paths;
+    }
+
+    /** @return the user IDs, one of which is required, empty if any user is accepted */
+    Set<String> getUsers() {
+        return users;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " paths=" + paths + ", users=" + users;
+    }
+}
@@ -0,0 +1,112 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Map;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.osgi.util.tracker.BundleTracker;
+
+/** CapabilitiesSource that provides the versions of the bundles, exported
+ *  packages and other capabilities that are present, from an index
+ *  that a BundleTracker maintains.
+ */
+@Component(
+    service = CapabilitiesSource.class,
+    configurationPolicy = ConfigurationPolicy.REQUIRE
+)
+@Designate(ocd = BundleCapabilitiesSource.Config.class, factory = true)
+public class BundleCapabilitiesSource implements CapabilitiesSource {
+
+    static final int TRACKED_STATES = Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING;
+
+    @ObjectClassDefinition(
+        name = "Apache Sling Capabilities - Bundles Source",
+        description = "Provides the versions of the bundles, exported packages and other capabilities that are present"
+    )
+    public static @interface Config {
+        @AttributeDefinition(
+            name = "Namespace",
+            description = "Namespace of the capabilities provided by this source, also used as its "
+                + CapabilitiesSource.NAMESPACE_PROPERTY + " service property."
+        )
+        String sling_capabilities_namespace() default "org.apache.sling.capabilities.bundles";
+
+        @AttributeDefinition(
+            name = "Bundle patterns",
+            description = "Regexps that select the bundles to consider, by symbolic name."
+        )
+        String [] bundle_patterns() default { ".*" };
+
+        @AttributeDefinition(
+            name = "Capability namespace patterns",
+            description = "Regexps that select the capabilities to include, by namespace. Exported packages "
+                + "are in the osgi.wiring.package namespace."
+        )
+        String [] capability_namespace_patterns() default { "osgi\\.wiring\\.package" };
+
+        @AttributeDefinition(
+            name = "Capability filter",
+            description = "Optional LDAP filter that selects the capabilities to include, based on their attributes."
+        )
+        String capability_filter() default "";
+    }
+
+    private String namespace;
+    private BundleIndex index;
+    private BundleTracker<Bundle> tracker;
+
+    @Activate
+    public void activate(BundleContext bundleContext, Config cfg) throws InvalidSyntaxException {
+        namespace = cfg.sling_capabilities_namespace();
+        final String filter = cfg.capability_filter();
+        index = new BundleIndex(
+            new RegexFilter(cfg.bundle_patterns()),
+            new RegexFilter(cfg.capability_namespace_patterns()),
+            filter == null || filter.trim().isEmpty() ? null : FrameworkUtil.createFilter(filter));
+        tracker = new BundleTracker<>(bundleContext, TRACKED_STATES, index);
+        tracker.open();
+    }
+
+    @Deactivate
+    public void deactivate() {
+        tracker.close();
+    }
+
+    @Override
+    public String getNamespace() {
+        return namespace;
+    }
+
+    @Override
+    public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+        return index.getSnapshot();
+    }
+}
@@ -0,0 +1,157 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Filter;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import org.osgi.util.tracker.BundleTrackerCustomizer;
+
+/** Index of the bundles, exported packages and other capabilities
+ *  provided by the tracked bundles.
+ *
+ *  The entries of a bundle are computed when the BundleTracker notifies
+ *  us of a change, and the snapshot used by requests is only rebuilt
+ *  from those entries, lazily, after changes.
+ */
+class BundleIndex implements BundleTrackerCustomizer<Bundle> {
+
+    static final String BUNDLE_PREFIX = "bundle.";
+    static final String PACKAGE_PREFIX = "package.";
+    static final String CAPABILITY_PREFIX = "capability.";
+
+    static final String PACKAGE_NAMESPACE = "osgi.wiring.package";
+    static final String VERSION_ATTRIBUTE = "version";
+
+    /** Capabilities namespaces that are already covered by the bundle entries */
+    private static final Set<String> IGNORED_NAMESPACES = Collections.unmodifiableSet(new TreeSet<>(
+        Arrays.asList("osgi.identity", "osgi.wiring.bundle", "osgi.wiring.host")));
+
+    private final RegexFilter bundleFilter;
+    private final RegexFilter namespaceFilter;
+    private final Filter capabilityFilter;
+
+    /** Keys and versions of each tracked bundle, by bundle ID */
+    private final Map<Long, Map<String, String>> entries = new ConcurrentHashMap<>();
+    private final AtomicBoolean dirty = new AtomicBoolean(true);
+    private volatile Map<String, Object> snapshot = Collections.emptyMap();
+
+    /** @param bundleFilter selects bundles by symbolic name
+     *  @param namespaceFilter selects capabilities by namespace
+     *  @param capabilityFilter if not null, selects capabilities by their attributes
+     */
+    BundleIndex(RegexFilter bundleFilter, RegexFilter namespaceFilter, Filter capabilityFilter) {
+        this.bundleFilter = bundleFilter;
+        this.namespaceFilter = namespaceFilter;
+        this.capabilityFilter = capabilityFilter;
+    }
+
+    @Override
+    public Bundle addingBundle(Bundle bundle, BundleEvent event) {
+        if(!bundleFilter.accept(bundle.getSymbolicName())) {
+            return null;
+        }
+        entries.put(bundle.getBundleId(), computeEntries(bundle));
+        dirty.set(true);
+        return bundle;
+    }
+
+    @Override
+    public void modifiedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+        entries.put(bundle.getBundleId(), computeEntries(bundle));
+        dirty.set(true);
+    }
+
+    @Override
+    public void removedBundle(Bundle bundle, BundleEvent event, Bundle object) {
+        entries.remove(bundle.getBundleId());
+        dirty.set(true);
+    }
+
+    /** @return the current capabilities, a read-only Map */
+    Map<String, Object> getSnapshot() {
+        if(dirty.get()) {
+            synchronized (this) {
+                // Changes that happen while we rebuild set the flag again
+                if(dirty.compareAndSet(true, false)) {
+                    snapshot = buildSnapshot();
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private Map<String, String> computeEntries(Bundle bundle) {
+        final Map<String, String> result = new TreeMap<>();
+        result.put(BUNDLE_PREFIX + bundle.getSymbolicName(), String.valueOf(bundle.getVersion()));
+        final BundleRevision revision = bundle.adapt(BundleRevision.class);
+        final List<BundleCapability> caps = revision == null ? null : revision.getDeclaredCapabilities(null);
+        if(caps != null) {
+            for(BundleCapability cap : caps) {
+                final String ns = cap.getNamespace();
+                if(IGNORED_NAMESPACES.contains(ns) || !namespaceFilter.accept(ns)) {
+                    continue;
+                }
+                final Map<String, Object> attributes = cap.getAttributes();
+                if(capabilityFilter != null && !capabilityFilter.matches(attributes)) {
+                    continue;
+                }
+                final Object name = attributes.get(ns);
+                final String key;
+                if(PACKAGE_NAMESPACE.equals(ns)) {
+                    key = PACKAGE_PREFIX + name;
+                } else {
+                    key = CAPABILITY_PREFIX + ns + (name == null ? "" : "." + name);
+                }
+                final Object version = attributes.get(VERSION_ATTRIBUTE);
+                result.merge(key, version == null ? Version.emptyVersion.toString() : version.toString(),
+                    (a, b) -> a.equals(b) ? a : a + "," + b);
+            }
+        }
+        return result;
+    }
+
+    /** Merge the entries of all bundles, joining the distinct versions of each key */
+    private Map<String, Object> buildSnapshot() {
+        final Map<String, Set<String>> versions = new TreeMap<>();
+        for(Map<String, String> e : entries.values()) {
+            for(Map.Entry<String, String> kv : e.entrySet()) {
+                final Set<String> s = versions.computeIfAbsent(kv.getKey(), k -> new TreeSet<>());
+                Collections.addAll(s, kv.getValue().split(","));
+            }
+        }
+        final Map<String, Object> result = new TreeMap<>();
+        for(Map.Entry<String, Set<String>> e : versions.entrySet()) {
+            result.put(e.getKey(), String.join(",", e.getValue()));
+        }
+        return Collections.unmodifiableMap(result);
+    }
+}
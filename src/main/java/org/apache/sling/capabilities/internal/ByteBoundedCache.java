@@ -0,0 +1,84 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongBiFunction;
+
+/** Thread-safe LRU cache bounded by the estimated heap size of its
+ *  values rather than by their number.
+ */
+class ByteBoundedCache<K, V> {
+
+    private final long maxBytes;
+    private final ToLongBiFunction<K, V> sizer;
+    private final Map<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<K, Long> sizes = new LinkedHashMap<>();
+    private long totalBytes;
+
+    /** @param maxBytes max total size of the values
+     *  @param sizer estimates the heap size of an entry, from its key and value
+     */
+    ByteBoundedCache(long maxBytes, ToLongBiFunction<K, V> sizer) {
+        this.maxBytes = maxBytes;
+        this.sizer = sizer;
+    }
+
+    synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    /** Store a value, evicting the least recently used ones as needed.
+     *  Values larger than maxBytes are not stored.
+     */
+    synchronized void put(K key, V value) {
+        remove(key);
+        final long size = sizer.applyAsLong(key, value);
+        if(size > maxBytes) {
+            return;
+        }
+        map.put(key, value);
+        sizes.put(key, size);
+        totalBytes += size;
+        final Iterator<Map.Entry<K, V>> it = map.entrySet().iterator();
+        while(totalBytes > maxBytes && it.hasNext()) {
+            final K eldest = it.next().getKey();
+            it.remove();
+            totalBytes -= sizes.remove(eldest);
+        }
+    }
+
+    synchronized V remove(K key) {
+        final Long size = sizes.remove(key);
+        if(size != null) {
+            totalBytes -= size;
+        }
+        return map.remove(key);
+    }
+
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    synchronized int size() {
+        return map.size();
+    }
+}
@@ -0,0 +1,84 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Set;
+import java.util.TreeSet;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.sling.capabilities.CapabilitiesSource;
+
+/** Collects the namespaces and lifetimes of the capabilities included in
+ *  a response, to set its HTTP caching headers.
+ *
+ *  A Cache-Control max-age is only set if all included sources declare
+ *  their lifetime, and if no errors are included. Surrogate keys list the
+ *  included namespaces, so that caches can be purged by namespace.
+ */
+class CacheHeaders {
+
+    static final String CACHE_CONTROL = "Cache-Control";
+    static final String SURROGATE_KEY = "Surrogate-Key";
+    static final String CACHE_TAG = "Cache-Tag";
+
+    private final Set<String> namespaces = new TreeSet<>();
+    private long maxAgeSeconds = Long.MAX_VALUE;
+    private boolean cacheable = true;
+
+    /** Record that the capabilities of source are included under namespace */
+    void addSource(CapabilitiesSource source, String namespace) {
+        namespaces.add(namespace);
+        final long lifetime = source instanceof ReferencedSource ? ((ReferencedSource)source).getLifetimeSeconds() : -1;
+        if(lifetime < 0) {
+            cacheable = false;
+        } else {
+            maxAgeSeconds = Math.min(maxAgeSeconds, lifetime);
+        }
+    }
+
+    /** Record that content with an unknown lifetime, like errors or the
+     *  output of peers, is included.
+     */
+    void addUncacheable() {
+        cacheable = false;
+    }
+
+    Set<String> getNamespaces() {
+        return namespaces;
+    }
+
+    /** @return the max-age in seconds, -1 if the response must not be cached */
+    long getMaxAgeSeconds() {
+        return cacheable && maxAgeSeconds != Long.MAX_VALUE ? maxAgeSeconds : -1;
+    }
+
+    /** Set our headers on response
+     *  @param shared if true, the response can be stored by shared caches,
+     *      otherwise only by the client's private cache
+     */
+    void setHeaders(HttpServletResponse response, boolean shared) {
+        final long maxAge = getMaxAgeSeconds();
+        if(maxAge >= 0) {
+            response.setHeader(CACHE_CONTROL, (shared ? "public" : "private") + ", max-age=" + maxAge);
+        }
+        if(!namespaces.isEmpty()) {
+            response.setHeader(SURROGATE_KEY, String.join(" ", namespaces));
+            response.setHeader(CACHE_TAG, String.join(",", namespaces));
+        }
+    }
+}
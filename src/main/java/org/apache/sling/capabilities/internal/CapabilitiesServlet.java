@@ -18,21 +18,45 @@
  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
 package org.apache.sling.capabilities.internal;
 
+import java.io.BufferedWriter;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import org.apache.sling.api.SlingHttpServletRequest;
 import org.apache.sling.api.SlingHttpServletResponse;
 import org.apache.sling.api.resource.Resource;
-import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
 import org.apache.sling.api.servlets.SlingSafeMethodsServlet;
 import org.apache.sling.capabilities.CapabilitiesSource;
+import org.osgi.framework.ServiceReference;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.component.annotations.ReferenceCardinality;
 import org.osgi.service.component.annotations.ReferencePolicy;
@@ -41,16 +65,244 @@ import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
-@Component(service = Servlet.class,
+@Component(service = { Servlet.class, ResourceChangeListener.class },
 property = {
-    "sling.servlet.resourceTypes=sling/capabilities",
+    "sling.servlet.resourceTypes=" + CapabilitiesServlet.RESOURCE_TYPE,
     "sling.servlet.methods=GET",
-    "sling.servlet.extensions=json"
+    "sling.servlet.extensions=json",
+    ResourceChangeListener.CHANGES + "=ADDED",
+    ResourceChangeListener.CHANGES + "=CHANGED",
+    ResourceChangeListener.CHANGES + "=REMOVED",
+    ResourceChangeListener.PATHS + "=" + CapabilitiesServlet.DEFAULT_RESOURCE_PATH
 })
-public class CapabilitiesServlet extends SlingSafeMethodsServlet {
+@Designate(ocd = CapabilitiesServlet.Config.class)
+public class CapabilitiesServlet extends SlingSafeMethodsServlet implements ResourceChangeListener, ExternalResourceChangeListener {
     
-    private final List<CapabilitiesSource> sources = new CopyOnWriteArrayList<>();
+    private final List<ReferencedSource> sources = new CopyOnWriteArrayList<>();
+    private final EndpointCache endpoints = new EndpointCache();
+    private final SnapshotStore snapshots = new SnapshotStore();
     public static final String NAMESPACES_PROP = "namespace_patterns";
+    public static final String KEYS_PROP = "key_patterns";
+    public static final String PEERS_PROP = "include_peers";
+    public static final String LATENCY_BUDGET_PROP = "latency_budget_msec";
+    public static final String FIELDS_PARAM = "fields";
+    public static final String SERVER_TIMING_PARAM = "serverTiming";
+    public static final String BATCH_PATH_PARAM = "path";
+    public static final String RESOURCE_TYPE = "sling/capabilities";
+    static final String SOURCE_REFERENCE = "source";
+
+    /** Request header with which clients ask for an ETag, to make conditional requests later */
+    static final String ETAG_REQUEST_HEADER = "Sling-Capabilities-ETag";
+
+    @ObjectClassDefinition(
+        name = "Apache Sling Capabilities Servlet",
+        description = "Provides the JSON output of sling/capabilities resources"
+    )
+    public static @interface Config {
+        @AttributeDefinition(
+            name = "Server-Timing header",
+            description = "If true, a Server-Timing header that shows the time spent for each namespace, "
+                + "in filtering and in serialization is added to all responses."
+        )
+        boolean serverTimingEnabled() default false;
+
+        @AttributeDefinition(
+            name = "Server-Timing users",
+            description = "IDs of the users who can request the Server-Timing header by adding a "
+                + SERVER_TIMING_PARAM + "=true parameter to their requests."
+        )
+        String [] serverTimingUsers() default {};
+
+        @AttributeDefinition(
+            name = "Observed paths",
+            description = "Changes under these paths invalidate the cached definitions of the "
+                + "sling/capabilities resources, which are only cached if located under these paths, and the cached "
+                + "access check results of the paths that CapabilitiesSources require. Observing broad paths like / "
+                + "makes every repository change go through this servlet."
+        )
+        String [] resource_paths() default { DEFAULT_RESOURCE_PATH };
+
+        @AttributeDefinition(
+            name = "Max batch paths",
+            description = "Maximum number of " + BATCH_PATH_PARAM + " parameters in a batch request."
+        )
+        int batchMaxPaths() default DEFAULT_BATCH_MAX_PATHS;
+
+        @AttributeDefinition(
+            name = "Failure threshold",
+            description = "Number of consecutive failures of a CapabilitiesSource after which it's not called "
+                + "anymore for a backoff period, serving its last error or last good value instead. Zero disables this."
+        )
+        int failureThreshold() default 3;
+
+        @AttributeDefinition(
+            name = "Initial backoff (msec)",
+            description = "Initial backoff period after failures of a CapabilitiesSource, doubled on each new failure."
+        )
+        long initialBackoffMsec() default 1000;
+
+        @AttributeDefinition(
+            name = "Max backoff (msec)",
+            description = "Maximum backoff period after failures of a CapabilitiesSource."
+        )
+        long maxBackoffMsec() default 60000;
+
+        @AttributeDefinition(
+            name = "Serve last good value",
+            description = "If true, the last good value of a failing CapabilitiesSource, for the same user, is served "
+                + "during the backoff period, instead of its last error."
+        )
+        boolean serveLastGoodValue() default false;
+
+        @AttributeDefinition(
+            name = "Last good values max size (bytes)",
+            description = "Maximum estimated heap size of the last good values kept for failing CapabilitiesSources, "
+                + "the least recently used ones are dropped when it's reached."
+        )
+        long lastGoodValuesMaxBytes() default CircuitBreakers.DEFAULT_LAST_GOOD_VALUES_MAX_BYTES;
+
+        @AttributeDefinition(
+            name = "Peers",
+            description = "Peer instances whose capabilities are included by the " + RESOURCE_TYPE + " resources that have "
+                + "an " + PEERS_PROP + "=true property, in the name=URL format where URL points to a "
+                + "capabilities endpoint of the peer. Peers are requested without credentials."
+        )
+        String [] peers() default {};
+
+        @AttributeDefinition(
+            name = "Peer timeout (msec)",
+            description = "Maximum time to wait for each peer, after which its section of the output only "
+                + "contains an error status."
+        )
+        long peerTimeoutMsec() default 2000;
+
+        @AttributeDefinition(
+            name = "Latency budget threads",
+            description = "Maximum number of threads used to invoke CapabilitiesSources for the " + RESOURCE_TYPE
+                + " resources that have a " + LATENCY_BUDGET_PROP + " property. Sources are omitted if no thread is available, "
+                + "and sources that exceed the budget keep their thread until they complete, so this should be larger than "
+                + "the expected number of concurrent requests to such resources. Rejections are recorded as JFR events."
+        )
+        int latencyBudgetMaxThreads() default 10;
+
+        @AttributeDefinition(
+            name = "Access cache lifetime (seconds)",
+            description = "How long the results of checking the required paths declared by CapabilitiesSources "
+                + "are cached, per user. Changes under the observed paths also invalidate them. Zero disables caching."
+        )
+        long accessCacheTtlSeconds() default AccessChecker.DEFAULT_TTL_SECONDS;
+
+        @AttributeDefinition(
+            name = "Access cache max entries",
+            description = "Maximum number of cached access check results, the cache is cleared when it's reached."
+        )
+        int accessCacheMaxEntries() default AccessChecker.DEFAULT_MAX_ENTRIES;
+
+        @AttributeDefinition(
+            name = "ETag on all responses",
+            description = "If true, all responses get an ETag header, which requires buffering and hashing them. Otherwise "
+                + "only cacheable responses, conditional requests, requests from peers and requests that have a "
+                + ETAG_REQUEST_HEADER + " header get one, and other responses are streamed."
+        )
+        boolean etagOnAllResponses() default false;
+    }
+
+    static final int DEFAULT_BATCH_MAX_PATHS = 20;
+
+    /** Where sling/capabilities resources are expected by default */
+    static final String DEFAULT_RESOURCE_PATH = "/var/capabilities";
+
+    /** Size in chars of the buffer used when streaming our output */
+    private static final int STREAM_BUFFER_SIZE = 1024;
+
+    /** Number of digest bytes used in our ETags */
+    private static final int ETAG_BYTES = 16;
+
+    private volatile boolean serverTimingEnabled;
+    private volatile Set<String> serverTimingUsers = new HashSet<>();
+    private volatile int batchMaxPaths = DEFAULT_BATCH_MAX_PATHS;
+    private volatile CircuitBreakers circuitBreakers = CircuitBreakers.DISABLED;
+    private volatile PeerClient peerClient;
+    private volatile ExecutorService budgetExecutor;
+    private volatile AccessChecker accessChecker = AccessChecker.UNCACHED;
+    private volatile boolean etagOnAllResponses;
+
+    private final List<SourceChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+
+    private volatile ComponentContext componentContext;
+
+    @Activate
+    public void activate(ComponentContext ctx, Config cfg) {
+        componentContext = ctx;
+        serverTimingEnabled = cfg.serverTimingEnabled();
+        final String [] users = cfg.serverTimingUsers();
+        serverTimingUsers = users == null ? new HashSet<>() : new HashSet<>(Arrays.asList(users));
+        batchMaxPaths = cfg.batchMaxPaths();
+        circuitBreakers = new CircuitBreakers(cfg.failureThreshold(), cfg.initialBackoffMsec(), cfg.maxBackoffMsec(),
+            cfg.serveLastGoodValue(), cfg.lastGoodValuesMaxBytes(), snapshots, System::nanoTime);
+        final Map<String, URI> peers = PeerClient.parsePeers(cfg.peers());
+        peerClient = peers.isEmpty() ? null : new PeerClient(peers, cfg.peerTimeoutMsec(), snapshots);
+        budgetExecutor = createBudgetExecutor(cfg.latencyBudgetMaxThreads());
+        accessChecker = new AccessChecker(cfg.accessCacheTtlSeconds(), cfg.accessCacheMaxEntries(), System::nanoTime);
+        etagOnAllResponses = cfg.etagOnAllResponses();
+        endpoints.setObservedPaths(cfg.resource_paths());
+    }
+
+    @Deactivate
+    public void deactivate() {
+        final ExecutorService ex = budgetExecutor;
+        budgetExecutor = null;
+        if(ex != null) {
+            ex.shutdownNow();
+        }
+        final PeerClient pc = peerClient;
+        peerClient = null;
+        if(pc != null) {
+            pc.close();
+        }
+    }
+
+    /** Threads are only created as needed, and there's no queue as
+     *  waiting for a thread would eat the latency budget.
+     */
+    private static ExecutorService createBudgetExecutor(int maxThreads) {
+        final AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(0, Math.max(1, maxThreads), 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+            final Thread t = new Thread(r, "sling-capabilities-budget-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** @param budgetMsec zero for no budget
+     *  @param startNanos start of the request
+     */
+    private LatencyBudget getLatencyBudget(long budgetMsec, long startNanos) {
+        final ExecutorService ex = budgetExecutor;
+        if(budgetMsec <= 0 || ex == null) {
+            return LatencyBudget.NONE;
+        }
+        return new LatencyBudget(ex, startNanos + TimeUnit.MILLISECONDS.toNanos(budgetMsec));
+    }
+
+    private RequestContext requestContext(ResourceResolver resolver, ServerTiming timing, CacheHeaders cacheHeaders, LatencyBudget budget) {
+        return new RequestContext(resolver)
+            .timing(timing)
+            .circuitBreakers(circuitBreakers)
+            .cacheHeaders(cacheHeaders)
+            .budget(budget)
+            .accessChecker(accessChecker);
+    }
+
+    /** Writes our JSON output */
+    private interface JsonOutput {
+        void write(Writer w) throws IOException;
+    }
+
+    /** Invokes the sources of our JSON output before writing it */
+    private interface JsonPreparation {
+        void prepare() throws IOException;
+    }
 
     @Override
     public String toString() {
@@ -60,34 +312,329 @@ public class CapabilitiesServlet extends SlingSafeMethodsServlet {
     @Override
     protected void doGet(SlingHttpServletRequest request, SlingHttpServletResponse response) throws ServletException, IOException {
         
+        final long startNanos = System.nanoTime();
+        final Object jfr = JfrEvents.beginRequest();
         final Resource resource = request.getResource();
+        final Projection projection;
+        try {
+            projection = Projection.parse(request.getParameterValues(FIELDS_PARAM));
+        } catch(IllegalArgumentException iae) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid " + FIELDS_PARAM + " parameter: " + iae.getMessage());
+            return;
+        }
+        final String [] batchPaths = request.getParameterValues(BATCH_PATH_PARAM);
+        if(batchPaths != null) {
+            doBatch(request, response, batchPaths, projection, startNanos, jfr);
+            return;
+        }
 
         // Resource must define which namespaces are exposed, 
         // to make sure administrators think about
         // what's exposed
-        final ValueMap m = resource.adaptTo(ValueMap.class);
-        final String [] namespacePatterns = m.get(NAMESPACES_PROP, String[].class);
-        if(namespacePatterns == null) {
+        final EndpointDefinition endpoint;
+        try {
+            endpoint = endpoints.get(resource, sources);
+        } catch(IllegalArgumentException iae) {
+            response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Invalid " + RESOURCE_TYPE + " resource: " + iae.getMessage());
+            return;
+        }
+        if(endpoint.getNamespacePatterns() == null) {
             response.sendError(HttpServletResponse.SC_FORBIDDEN, "Missing property " + NAMESPACES_PROP);
             return;
         }
         
+        // Peers are requested first, so that they work while we compute our own capabilities.
+        // Requests coming from peers do not include peers, to avoid request loops.
+        final PeerClient client = peerClient;
+        final boolean fromPeer = request.getHeader(PeerClient.PEER_HEADER) != null;
+        final Map<String, CompletableFuture<PeerClient.PeerResponse>> peers =
+            endpoint.includePeers() && client != null && !fromPeer ? client.fetchAll() : null;
+
         // All good, get capabilities
+        final ServerTiming timing = getServerTiming(request);
+        final CacheHeaders cacheHeaders = new CacheHeaders();
+        final int bytes;
+        try(LatencyBudget budget = getLatencyBudget(endpoint.getLatencyBudgetMsec(), startNanos)) {
+            final JSONCapabilitiesWriter writer = new JSONCapabilitiesWriter(
+                requestContext(resource.getResourceResolver(), timing, cacheHeaders, budget));
+            bytes = writeResponse(request, response, timing, cacheHeaders, jfr != null,
+                () -> writer.prepareJson(endpoint, projection, peers != null),
+                w -> writer.writeJson(w, endpoint, projection, peers));
+        }
+        JfrEvents.endRequest(jfr, resource.getPath(), false, endpoint.getNamespacePatterns().length,
+            cacheHeaders.getNamespaces().size(), bytes);
+    }
+
+    /** Output several endpoints, each one being resolved using the request's
+     *  ResourceResolver so that access control applies.
+     */
+    private void doBatch(SlingHttpServletRequest request, SlingHttpServletResponse response, String [] batchPaths,
+            Projection projection, long startNanos, Object jfr) throws IOException {
+        if(batchPaths.length > batchMaxPaths) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Too many " + BATCH_PATH_PARAM + " parameters, max is " + batchMaxPaths);
+            return;
+        }
+
+        final ResourceResolver resolver = request.getResourceResolver();
+        final Map<String, JSONCapabilitiesWriter.BatchEntry> entries = new LinkedHashMap<>();
+        for(String path : batchPaths) {
+            if(entries.containsKey(path)) {
+                continue;
+            }
+            final Resource r = resolver.getResource(request.getResource(), path);
+            if(r == null) {
+                entries.put(path, new JSONCapabilitiesWriter.BatchEntry(path, HttpServletResponse.SC_NOT_FOUND, "Resource not found"));
+            } else if(!r.isResourceType(RESOURCE_TYPE)) {
+                entries.put(path, new JSONCapabilitiesWriter.BatchEntry(path, HttpServletResponse.SC_BAD_REQUEST, "Not a " + RESOURCE_TYPE + " resource"));
+            } else {
+                try {
+                    final EndpointDefinition endpoint = endpoints.get(r, sources);
+                    if(endpoint.getNamespacePatterns() == null) {
+                        entries.put(path, new JSONCapabilitiesWriter.BatchEntry(path, HttpServletResponse.SC_FORBIDDEN, "Missing property " + NAMESPACES_PROP));
+                    } else {
+                        entries.put(path, new JSONCapabilitiesWriter.BatchEntry(path, endpoint));
+                    }
+                } catch(IllegalArgumentException iae) {
+                    entries.put(path, new JSONCapabilitiesWriter.BatchEntry(path, HttpServletResponse.SC_INTERNAL_SERVER_ERROR, "Invalid " + RESOURCE_TYPE + " resource: " + iae.getMessage()));
+                }
+            }
+        }
+
+        final ServerTiming timing = getServerTiming(request);
+        // The smallest budget of the endpoints applies to the whole batch
+        long budgetMsec = 0;
+        for(JSONCapabilitiesWriter.BatchEntry e : entries.values()) {
+            final long b = e.endpoint == null ? 0 : e.endpoint.getLatencyBudgetMsec();
+            if(b > 0 && (budgetMsec == 0 || b < budgetMsec)) {
+                budgetMsec = b;
+            }
+        }
+        final CacheHeaders cacheHeaders = new CacheHeaders();
+        final int bytes;
+        try(LatencyBudget budget = getLatencyBudget(budgetMsec, startNanos)) {
+            final JSONCapabilitiesWriter writer = new JSONCapabilitiesWriter(requestContext(resolver, timing, cacheHeaders, budget));
+            bytes = writeResponse(request, response, timing, cacheHeaders, jfr != null,
+                () -> writer.prepareBatchJson(entries.values(), projection),
+                w -> writer.writeBatchJson(w, entries.values(), projection));
+        }
+        if(jfr != null) {
+            int patternCount = 0;
+            for(JSONCapabilitiesWriter.BatchEntry e : entries.values()) {
+                patternCount += e.endpoint == null ? 0 : e.endpoint.getNamespacePatterns().length;
+            }
+            JfrEvents.endRequest(jfr, request.getResource().getPath(), true, patternCount, cacheHeaders.getNamespaces().size(), bytes);
+        }
+    }
+
+    /** Write our JSON output with its caching headers, which are known once preparation has invoked
+     *  the sources. The output is only buffered if an ETag or a Server-Timing header is needed,
+     *  and a matching If-None-Match header then gets just a 304 status.
+     *  @param cacheHeaders filled by preparation
+     *  @param countBytes if false, the bytes of streamed output are not counted
+     *  @return the number of bytes written, zero if not counted
+     */
+    private int writeResponse(SlingHttpServletRequest request, SlingHttpServletResponse response, ServerTiming timing,
+            CacheHeaders cacheHeaders, boolean countBytes, JsonPreparation preparation, JsonOutput output) throws IOException {
+        final long start = timing.start();
+        preparation.prepare();
+        // Only the output of unauthenticated requests can be stored by shared caches
+        cacheHeaders.setHeaders(response, request.getAuthType() == null);
+        final String ifNoneMatch = request.getHeader(PeerClient.IF_NONE_MATCH);
+        final boolean needsETag = etagOnAllResponses || ifNoneMatch != null || cacheHeaders.getMaxAgeSeconds() >= 0
+            || request.getHeader(PeerClient.PEER_HEADER) != null || request.getHeader(ETAG_REQUEST_HEADER) != null;
         response.setContentType("application/json");
         response.setCharacterEncoding("UTF-8");
-        new JSONCapabilitiesWriter().writeJson(resource.getResourceResolver(), response.getWriter(), sources, new RegexFilter(namespacePatterns));
+
+        if(!needsETag && !timing.isEnabled()) {
+            // Our output is written in small pieces, down to single characters,
+            // which response writers often do not handle efficiently
+            final Writer buffered = new BufferedWriter(response.getWriter(), STREAM_BUFFER_SIZE);
+            final Writer w = countBytes ? new ByteCountingWriter(buffered) : buffered;
+            output.write(w);
+            w.flush();
+            return countBytes ? ((ByteCountingWriter)w).getCount() : 0;
+        }
+
+        final StringWriter w = new StringWriter();
+        output.write(w);
+        final String body = w.toString();
+        final byte [] bytes = body.getBytes(StandardCharsets.UTF_8);
+        final String etag = needsETag ? computeETag(bytes) : null;
+        timing.add(ServerTiming.TOTAL, start);
+
+        if(etag != null) {
+            response.setHeader(PeerClient.ETAG, etag);
+        }
+        if(timing.isEnabled()) {
+            response.setHeader(ServerTiming.HEADER, timing.toHeaderValue());
+        }
+        if(etag != null && matchesETag(ifNoneMatch, etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return 0;
+        }
+        response.getWriter().write(body);
         response.getWriter().flush();
+        return bytes.length;
+    }
+
+    /** Counts the UTF-8 bytes of what's written through it */
+    private static class ByteCountingWriter extends FilterWriter {
+        private int count;
+
+        ByteCountingWriter(Writer out) {
+            super(out);
+        }
+
+        int getCount() {
+            return count;
+        }
+
+        private void count(char c) {
+            // Each half of a surrogate pair counts for half of its 4 bytes
+            count += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            count((char)c);
+            super.write(c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for(int i=off; i < off + len; i++) {
+                count(cbuf[i]);
+            }
+            super.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for(int i=off; i < off + len; i++) {
+                count(str.charAt(i));
+            }
+            super.write(str, off, len);
+        }
+    }
+
+    /** @return a strong ETag computed from the supplied content */
+    static String computeETag(byte [] content) {
+        final byte [] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256").digest(content);
+        } catch(NoSuchAlgorithmException nsae) {
+            throw new IllegalStateException("SHA-256 not available", nsae);
+        }
+        final StringBuilder sb = new StringBuilder(ETAG_BYTES * 2 + 2);
+        sb.append('"');
+        for(int i=0; i < ETAG_BYTES; i++) {
+            sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(digest[i] & 0xF, 16));
+        }
+        sb.append('"');
+        return sb.toString();
+    }
+
+    /** @return true if the value of an If-None-Match header matches etag */
+    static boolean matchesETag(String ifNoneMatch, String etag) {
+        if(ifNoneMatch == null) {
+            return false;
+        }
+        for(String candidate : ifNoneMatch.split(",")) {
+            String c = candidate.trim();
+            if(c.startsWith("W/")) {
+                c = c.substring(2);
+            }
+            if(c.equals("*") || c.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return an active ServerTiming if configured or requested by a privileged user */
+    private ServerTiming getServerTiming(SlingHttpServletRequest request) {
+        if(serverTimingEnabled) {
+            return new ServerTiming();
+        }
+        if(!serverTimingUsers.isEmpty() && Boolean.parseBoolean(request.getParameter(SERVER_TIMING_PARAM))) {
+            final ResourceResolver resolver = request.getResourceResolver();
+            final String userId = resolver == null ? null : resolver.getUserID();
+            if(userId != null && serverTimingUsers.contains(userId)) {
+                return new ServerTiming();
+            }
+        }
+        return ServerTiming.DISABLED;
+    }
+
+    /** Sources are bound by reference, and their services only obtained when needed */
+    @Reference(
+        name=SOURCE_REFERENCE,
+        service=CapabilitiesSource.class,
+        policy=ReferencePolicy.DYNAMIC,
+        cardinality=ReferenceCardinality.MULTIPLE,
+        policyOption=ReferencePolicyOption.GREEDY,
+        updated="updatedSource")
+    void bindSource(ServiceReference<CapabilitiesSource> ref) {
+        final ReferencedSource s = new ReferencedSource(ref, this::locateSource);
+        sources.add(s);
+        endpoints.clear();
+        postPurgeHint(s.getKnownNamespace());
+    }
+
+    void updatedSource(ServiceReference<CapabilitiesSource> ref) {
+        // The declared namespace might have changed
+        unbindSource(ref);
+        bindSource(ref);
+    }
+
+    void unbindSource(ServiceReference<CapabilitiesSource> ref) {
+        for(ReferencedSource s : sources) {
+            if(s.getReference().equals(ref)) {
+                sources.remove(s);
+                final String namespace = s.getKnownNamespace();
+                if(namespace != null) {
+                    circuitBreakers.reset(namespace);
+                    postPurgeHint(namespace);
+                }
+            }
+        }
+        endpoints.clear();
     }
 
     @Reference(
+        service=SourceChangeListener.class,
         policy=ReferencePolicy.DYNAMIC,
         cardinality=ReferenceCardinality.MULTIPLE,
         policyOption=ReferencePolicyOption.GREEDY)
-    void bindSource(CapabilitiesSource src) {
-        sources.add(src);
+    void bindChangeListener(SourceChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    void unbindChangeListener(SourceChangeListener listener) {
+        changeListeners.remove(listener);
     }
 
-    void unbindSource(CapabilitiesSource src) {
-        sources.remove(src);
+    /** Let listeners know that the outputs which include namespace have changed */
+    private void postPurgeHint(String namespace) {
+        if(namespace != null) {
+            for(SourceChangeListener l : changeListeners) {
+                l.sourceChanged(namespace);
+            }
+        }
+    }
+
+    private CapabilitiesSource locateSource(ServiceReference<CapabilitiesSource> ref) {
+        final ComponentContext ctx = componentContext;
+        return ctx == null ? null : ctx.locateService(SOURCE_REFERENCE, ref);
+    }
+
+    @Override
+    public void onChange(List<ResourceChange> changes) {
+        final AccessChecker checker = accessChecker;
+        for(ResourceChange c : changes) {
+            endpoints.invalidate(c.getPath());
+            checker.invalidate(c.getPath());
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,234 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+
+/** Per-namespace circuit breakers, which avoid calling failing
+ *  CapabilitiesSources on every request.
+ *
+ *  After a number of consecutive failures of a source, its last error or
+ *  optionally its last good value, both only for the same user, is served
+ *  without calling it for a backoff period that doubles on each new failure.
+ *  Other users get a generic error during that period, as errors can depend
+ *  on the user.
+ *  Once that period expires, a single request at a time calls the source
+ *  to find out if it has recovered.
+ *
+ *  Failures caused by the access rights of the caller, like access denied
+ *  errors, are returned to that caller but not counted, as they say nothing
+ *  about the health of the source for other users.
+ */
+class CircuitBreakers {
+
+    /** Default max estimated heap size of the last good values that we keep */
+    static final long DEFAULT_LAST_GOOD_VALUES_MAX_BYTES = 10L * 1024 * 1024;
+
+    static final CircuitBreakers DISABLED = new CircuitBreakers(0, 0, 0, false);
+
+    /** Simple names of the exceptions that indicate access failures */
+    private static final Set<String> ACCESS_FAILURE_NAMES = new HashSet<>(Arrays.asList(
+        "AccessDeniedException", "AccessControlException"));
+
+    /** How many causes of an exception are checked for access failures */
+    private static final int MAX_CAUSES = 10;
+
+    private final int failureThreshold;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final boolean serveLastGoodValue;
+    private final LongSupplier clock;
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+    private final SnapshotStore snapshots;
+    private final ByteBoundedCache<String, CompactValues> lastGoodValues;
+
+    private static class State {
+        int consecutiveFailures;
+        long backoffNanos;
+        long openUntilNanos;
+        boolean probing;
+        Map<String, Object> lastError;
+        String lastErrorUser;
+    }
+
+    /** @param failureThreshold number of consecutive failures that opens
+     *      a circuit, zero to disable circuit breakers
+     */
+    CircuitBreakers(int failureThreshold, long initialBackoffMsec, long maxBackoffMsec, boolean serveLastGoodValue) {
+        this(failureThreshold, initialBackoffMsec, maxBackoffMsec, serveLastGoodValue, System::nanoTime);
+    }
+
+    CircuitBreakers(int failureThreshold, long initialBackoffMsec, long maxBackoffMsec, boolean serveLastGoodValue, LongSupplier clock) {
+        this(failureThreshold, initialBackoffMsec, maxBackoffMsec, serveLastGoodValue, DEFAULT_LAST_GOOD_VALUES_MAX_BYTES,
+            new SnapshotStore(), clock);
+    }
+
+    /** @param lastGoodValuesMaxBytes max estimated heap size of the last good values
+     *  @param snapshots used to store compact copies of the last good values
+     */
+    CircuitBreakers(int failureThreshold, long initialBackoffMsec, long maxBackoffMsec, boolean serveLastGoodValue,
+            long lastGoodValuesMaxBytes, SnapshotStore snapshots, LongSupplier clock) {
+        this.snapshots = snapshots;
+        this.lastGoodValues = new ByteBoundedCache<>(lastGoodValuesMaxBytes,
+            (key, value) -> SnapshotStore.estimateBytes(key) + value.getEstimatedBytes());
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffNanos = TimeUnit.MILLISECONDS.toNanos(initialBackoffMsec);
+        this.maxBackoffNanos = Math.max(initialBackoffNanos, TimeUnit.MILLISECONDS.toNanos(maxBackoffMsec));
+        this.serveLastGoodValue = serveLastGoodValue;
+        this.clock = clock;
+    }
+
+    /** Call the supplied source unless its circuit is open
+     *  @return the source's capabilities, or a Map that describes
+     *      its current or last exception.
+     */
+    Map<String, Object> invoke(CapabilitiesSource source, ResourceResolver resolver) {
+        if(failureThreshold <= 0) {
+            try {
+                return call(source, resolver);
+            } catch(Exception e) {
+                return toError(e);
+            }
+        }
+
+        final String namespace = source.getNamespace();
+        final String user = userId(resolver);
+        final String lastGoodKey = serveLastGoodValue ? namespace + "#" + user : null;
+        final State state = states.get(namespace);
+        boolean probe = false;
+        if(state != null) {
+            synchronized (state) {
+                if(state.consecutiveFailures >= failureThreshold) {
+                    if(state.probing || clock.getAsLong() - state.openUntilNanos < 0) {
+                        return fallback(namespace, state, user, lastGoodKey);
+                    }
+                    // Backoff expired, this request probes the source
+                    state.probing = true;
+                    probe = true;
+                }
+            }
+        }
+
+        try {
+            final Map<String, Object> result;
+            try {
+                result = call(source, resolver);
+            } catch(Exception e) {
+                final Map<String, Object> error = toError(e);
+                if(!isAccessFailure(e)) {
+                    onFailure(namespace, error, user);
+                }
+                return error;
+            }
+            if(state != null) {
+                states.remove(namespace);
+            }
+            if(lastGoodKey != null) {
+                // Comparing is cheaper than compacting, and values rarely change
+                final CompactValues previous = lastGoodValues.get(lastGoodKey);
+                if(previous == null || !SnapshotStore.isSnapshotOf(previous, result)) {
+                    lastGoodValues.put(lastGoodKey, snapshots.compact(result));
+                }
+            }
+            return result;
+        } finally {
+            if(probe) {
+                // Also reset if the call failed with an Error, to avoid
+                // keeping the circuit open forever
+                synchronized (state) {
+                    state.probing = false;
+                }
+            }
+        }
+    }
+
+    /** Forget the state of namespace, for example when its source goes away */
+    void reset(String namespace) {
+        states.remove(namespace);
+    }
+
+    private static Map<String, Object> call(CapabilitiesSource source, ResourceResolver resolver) throws Exception {
+        final Map<String, Object> result = source.getCapabilities(resolver);
+        return result == null ? Collections.<String, Object>emptyMap() : result;
+    }
+
+    private static Map<String, Object> toError(Exception e) {
+        return Collections.<String, Object>singletonMap(SourceValues.EXCEPTION_KEY, e.getClass().getName() + ":" + e.getMessage());
+    }
+
+    /** @return true if e or one of its causes indicates that the caller is
+     *  not allowed to do something, like the access denied exceptions of JCR
+     *  or java.nio, which are matched by name to avoid depending on JCR.
+     */
+    static boolean isAccessFailure(Throwable e) {
+        for(int i=0; e != null && i < MAX_CAUSES; i++, e = e.getCause()) {
+            if(e instanceof SecurityException || e instanceof LoginException
+                    || ACCESS_FAILURE_NAMES.contains(e.getClass().getSimpleName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void onFailure(String namespace, Map<String, Object> error, String user) {
+        final State state = states.computeIfAbsent(namespace, k -> new State());
+        synchronized (state) {
+            state.lastError = error;
+            state.lastErrorUser = user;
+            state.consecutiveFailures++;
+            if(state.consecutiveFailures >= failureThreshold) {
+                state.backoffNanos = state.backoffNanos == 0 ? initialBackoffNanos : Math.min(state.backoffNanos * 2, maxBackoffNanos);
+                state.openUntilNanos = clock.getAsLong() + state.backoffNanos;
+            }
+        }
+    }
+
+    /** Called with the state's lock held */
+    private Map<String, Object> fallback(String namespace, State state, String user, String lastGoodKey) {
+        if(lastGoodKey != null) {
+            final Map<String, Object> lastGood = lastGoodValues.get(lastGoodKey);
+            if(lastGood != null) {
+                return lastGood;
+            }
+        }
+        if(user.equals(state.lastErrorUser)) {
+            return state.lastError;
+        }
+        return Collections.<String, Object>singletonMap(SourceValues.EXCEPTION_KEY,
+            "Circuit open for namespace " + namespace + " after " + state.consecutiveFailures + " consecutive failures");
+    }
+
+    /** Last good values and errors are kept per user, as sources are
+     *  only supposed to expose what the user has access to.
+     */
+    private static String userId(ResourceResolver resolver) {
+        final String userId = resolver == null ? null : resolver.getUserID();
+        return userId == null ? "" : userId;
+    }
+}
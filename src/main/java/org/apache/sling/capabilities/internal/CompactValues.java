@@ -0,0 +1,132 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/** Immutable, compact Map of capabilities, with sorted keys for
+ *  lookups by binary search. Created by a {@link SnapshotStore},
+ *  which also computes its estimated heap size.
+ */
+final class CompactValues extends AbstractMap<String, Object> {
+
+    private final String [] keys;
+    private final Object [] values;
+    private final long estimatedBytes;
+    private int hash;
+
+    /** @param keys sorted, not copied
+     *  @param values in the same order as keys, not copied
+     */
+    CompactValues(String [] keys, Object [] values, long estimatedBytes) {
+        this.keys = keys;
+        this.values = values;
+        this.estimatedBytes = estimatedBytes;
+    }
+
+    /** @return the estimated heap size of this object and of what it references,
+     *  counting shared objects as if they were not shared.
+     */
+    long getEstimatedBytes() {
+        return estimatedBytes;
+    }
+
+    private int indexOf(Object key) {
+        return key instanceof String ? Arrays.binarySearch(keys, key) : -1;
+    }
+
+    @Override
+    public Object get(Object key) {
+        final int i = indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public int hashCode() {
+        // Immutable, so it can be cached
+        int h = hash;
+        if(h == 0) {
+            h = super.hashCode();
+            hash = h;
+        }
+        return h;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o == this) {
+            return true;
+        }
+        if(o instanceof CompactValues) {
+            final CompactValues other = (CompactValues)o;
+            return hashCode() == other.hashCode()
+                && Arrays.equals(keys, other.keys)
+                && Arrays.deepEquals(values, other.values);
+        }
+        return super.equals(o);
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        return new AbstractSet<Map.Entry<String, Object>>() {
+            @Override
+            public Iterator<Map.Entry<String, Object>> iterator() {
+                return new Iterator<Map.Entry<String, Object>>() {
+                    private int next;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < keys.length;
+                    }
+
+                    @Override
+                    public Map.Entry<String, Object> next() {
+                        if(next >= keys.length) {
+                            throw new NoSuchElementException();
+                        }
+                        final Map.Entry<String, Object> e = new AbstractMap.SimpleImmutableEntry<>(keys[next], values[next]);
+                        next++;
+                        return e;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+}
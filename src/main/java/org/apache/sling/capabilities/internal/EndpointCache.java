@@ -0,0 +1,106 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.capabilities.CapabilitiesSource;
+
+/** Cache of EndpointDefinitions, keyed by resource path, so that
+ *  requests do not need to read the endpoint resources or compile their
+ *  namespace patterns. Must be invalidated when the endpoint resources
+ *  or the set of available sources change, so only the resources found
+ *  under the observed paths are cached.
+ */
+class EndpointCache {
+
+    private final Map<String, EndpointDefinition> cache = new ConcurrentHashMap<>();
+
+    /** Incremented on every invalidation, to avoid caching definitions
+     *  which are computed while an invalidation happens */
+    private final AtomicLong generation = new AtomicLong();
+
+    private volatile String [] observedPaths = { "/" };
+
+    /** Set the paths under which changes are observed, which invalidates all definitions */
+    void setObservedPaths(String [] paths) {
+        observedPaths = paths == null ? new String[0] : paths.clone();
+        clear();
+    }
+
+    /** Get the definition of the supplied endpoint resource, computing it if needed */
+    EndpointDefinition get(Resource resource, Collection<? extends CapabilitiesSource> sources) {
+        final String path = resource.getPath();
+        EndpointDefinition result = cache.get(path);
+        if(result == null) {
+            final long gen = generation.get();
+            result = new EndpointDefinition(path, resource.adaptTo(ValueMap.class), sources);
+            if(generation.get() == gen && isObserved(path)) {
+                cache.put(path, result);
+                if(generation.get() != gen) {
+                    cache.remove(path, result);
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean isObserved(String path) {
+        for(String p : observedPaths) {
+            if(isSameOrDescendant(path, p)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isSameOrDescendant(String path, String ancestor) {
+        final String prefix = ancestor.endsWith("/") ? ancestor : ancestor + "/";
+        return path.equals(ancestor) || path.startsWith(prefix);
+    }
+
+    /** Invalidate the definitions of path and its descendants */
+    void invalidate(String path) {
+        generation.incrementAndGet();
+        if(cache.isEmpty()) {
+            return;
+        }
+        final Iterator<String> it = cache.keySet().iterator();
+        while(it.hasNext()) {
+            if(isSameOrDescendant(it.next(), path)) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Invalidate all definitions */
+    void clear() {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    int size() {
+        return cache.size();
+    }
+}
@@ -0,0 +1,145 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.capabilities.CapabilitiesSource;
+
+/** Definition of a capabilities endpoint, computed from a sling/capabilities
+ *  resource and the available CapabilitiesSource services.
+ */
+class EndpointDefinition {
+
+    private final String path;
+    private final String [] namespacePatterns;
+    private final RegexFilter namespaceFilter;
+    private final List<CapabilitiesSource> sources;
+    private final Map<String, RegexFilter> keyFilters;
+    private final boolean includePeers;
+    private final long latencyBudgetMsec;
+    private final boolean distinctNamespaces;
+
+    /** @param path of the endpoint resource
+     *  @param properties of the endpoint resource, null if it has none. Uses its
+     *      NAMESPACES_PROP, KEYS_PROP, PEERS_PROP and LATENCY_BUDGET_PROP values,
+     *      and the endpoint does not expose any namespaces without NAMESPACES_PROP.
+     *  @param allSources the sources are filtered according to the namespace patterns
+     *  @throws IllegalArgumentException if the patterns are invalid
+     */
+    EndpointDefinition(String path, ValueMap properties, Collection<? extends CapabilitiesSource> allSources) {
+        this.path = path;
+        if(properties == null) {
+            namespacePatterns = null;
+            keyFilters = Collections.emptyMap();
+            includePeers = false;
+            latencyBudgetMsec = 0;
+        } else {
+            namespacePatterns = properties.get(CapabilitiesServlet.NAMESPACES_PROP, String[].class);
+            keyFilters = parseKeyPatterns(properties.get(CapabilitiesServlet.KEYS_PROP, String[].class));
+            includePeers = properties.get(CapabilitiesServlet.PEERS_PROP, false);
+            latencyBudgetMsec = Math.max(0, properties.get(CapabilitiesServlet.LATENCY_BUDGET_PROP, 0L));
+        }
+        namespaceFilter = new RegexFilter(namespacePatterns);
+        if(namespacePatterns == null) {
+            sources = Collections.emptyList();
+        } else {
+            final List<CapabilitiesSource> matching = new ArrayList<>();
+            for(CapabilitiesSource s : allSources) {
+                if(namespaceFilter.accept(s.getNamespace())) {
+                    matching.add(s);
+                }
+            }
+            sources = Collections.unmodifiableList(matching);
+        }
+        final Set<String> namespaces = new HashSet<>();
+        boolean distinct = true;
+        for(CapabilitiesSource s : sources) {
+            distinct &= namespaces.add(s.getNamespace());
+        }
+        distinctNamespaces = distinct;
+    }
+
+    /** Parse patterns like namespace/keyPattern into a RegexFilter per namespace */
+    static Map<String, RegexFilter> parseKeyPatterns(String [] keyPatterns) {
+        if(keyPatterns == null || keyPatterns.length == 0) {
+            return Collections.emptyMap();
+        }
+        final Map<String, List<String>> byNamespace = new HashMap<>();
+        for(String p : keyPatterns) {
+            final int slash = p.indexOf('/');
+            if(slash <= 0) {
+                throw new IllegalArgumentException("Invalid key pattern, must be namespace/keyPattern: " + p);
+            }
+            byNamespace.computeIfAbsent(p.substring(0, slash), k -> new ArrayList<>()).add(p.substring(slash + 1));
+        }
+        final Map<String, RegexFilter> result = new HashMap<>();
+        for(Map.Entry<String, List<String>> e : byNamespace.entrySet()) {
+            result.put(e.getKey(), new RegexFilter(e.getValue().toArray(new String[0])));
+        }
+        return result;
+    }
+
+    String getPath() {
+        return path;
+    }
+
+    /** @return null if the endpoint resource does not define its namespace patterns */
+    String [] getNamespacePatterns() {
+        return namespacePatterns;
+    }
+
+    RegexFilter getNamespaceFilter() {
+        return namespaceFilter;
+    }
+
+    /** @return the filter for the keys of namespace, null if all keys are exposed */
+    RegexFilter getKeyFilter(String namespace) {
+        return keyFilters.get(namespace);
+    }
+
+    /** @return true if the capabilities of the configured peers must be included */
+    boolean includePeers() {
+        return includePeers;
+    }
+
+    /** @return the max time to spend invoking sources, zero for no limit */
+    long getLatencyBudgetMsec() {
+        return latencyBudgetMsec;
+    }
+
+    /** @return true if our sources have distinct namespaces, in which
+     *  case requests do not need to check for duplicates
+     */
+    boolean hasDistinctNamespaces() {
+        return distinctNamespaces;
+    }
+
+    /** @return the sources that match our namespace patterns */
+    List<CapabilitiesSource> getSources() {
+        return sources;
+    }
+}
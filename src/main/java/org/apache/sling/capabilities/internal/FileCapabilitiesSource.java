@@ -0,0 +1,161 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+/** CapabilitiesSource that provides static capabilities from the JSON
+ *  files of a directory, which a WatchService monitors to reload the
+ *  files that change.
+ */
+@Component(
+    service = CapabilitiesSource.class,
+    configurationPolicy = ConfigurationPolicy.REQUIRE
+)
+@Designate(ocd = FileCapabilitiesSource.Config.class, factory = true)
+public class FileCapabilitiesSource implements CapabilitiesSource {
+
+    @ObjectClassDefinition(
+        name = "Apache Sling Capabilities - Files Source",
+        description = "Provides static capabilities from the JSON files of a directory"
+    )
+    public static @interface Config {
+        @AttributeDefinition(
+            name = "Namespace",
+            description = "Namespace of the capabilities provided by this source, also used as its "
+                + CapabilitiesSource.NAMESPACE_PROPERTY + " service property."
+        )
+        String sling_capabilities_namespace() default "org.apache.sling.capabilities.files";
+
+        @AttributeDefinition(
+            name = "Directory",
+            description = "Path of the directory that contains the capabilities files."
+        )
+        String directory();
+
+        @AttributeDefinition(
+            name = "File patterns",
+            description = "Regexps that select the files to consider, by name. Each file must contain a JSON object."
+        )
+        String [] file_patterns() default { ".*\\.json" };
+    }
+
+    private String namespace;
+    private FileIndex index;
+    private WatchService watchService;
+    private Thread watcher;
+
+    @Activate
+    public void activate(Config cfg) throws IOException {
+        namespace = cfg.sling_capabilities_namespace();
+        final String dir = cfg.directory();
+        if(dir == null || dir.trim().isEmpty()) {
+            throw new IllegalArgumentException("Missing directory configuration");
+        }
+        index = new FileIndex(Paths.get(dir.trim()), new RegexFilter(cfg.file_patterns()));
+
+        // Watch before loading, to avoid missing changes
+        watchService = FileSystems.getDefault().newWatchService();
+        try {
+            index.getDirectory().register(watchService,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY,
+                StandardWatchEventKinds.ENTRY_DELETE);
+            index.loadAll();
+        } catch(IOException | RuntimeException e) {
+            // Deactivate is not called if activation fails
+            watchService.close();
+            throw e;
+        }
+
+        watcher = new Thread(() -> watch(watchService, index), "sling-capabilities-files-" + namespace);
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    @Deactivate
+    public void deactivate() throws IOException, InterruptedException {
+        watchService.close();
+        watcher.join(5000);
+    }
+
+    /** Process file change events until the WatchService is closed */
+    static void watch(WatchService watchService, FileIndex index) {
+        try {
+            while(true) {
+                final WatchKey key = watchService.take();
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        reloadAll(index);
+                    } else if(event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        index.fileDeleted((Path)event.context());
+                    } else {
+                        index.fileChanged((Path)event.context());
+                    }
+                }
+                if(!key.reset()) {
+                    // Directory is gone, keep the last known capabilities
+                    return;
+                }
+            }
+        } catch(ClosedWatchServiceException | InterruptedException e) {
+            // Deactivated, stop watching
+        }
+    }
+
+    /** Reload all files after events were lost. If the directory cannot be
+     *  listed right now, the current files are kept and watching goes on,
+     *  as the key is invalidated if the directory is really gone.
+     */
+    private static void reloadAll(FileIndex index) {
+        try {
+            index.loadAll();
+        } catch(IOException e) {
+            // Keep the current files, the next events will update them
+        }
+    }
+
+    @Override
+    public String getNamespace() {
+        return namespace;
+    }
+
+    @Override
+    public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+        return index.getSnapshot();
+    }
+}
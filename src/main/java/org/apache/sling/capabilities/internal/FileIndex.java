@@ -0,0 +1,265 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.felix.utils.json.JSONParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/** Index of the capabilities JSON files found in a directory.
+ *
+ *  Each file is parsed once, when it's loaded or reloaded after a
+ *  change, and the snapshot used by requests is only rebuilt from the
+ *  parsed files, lazily, after changes. The keys of that snapshot are
+ *  the file names without their extension.
+ *
+ *  If a file cannot be parsed, for example because it's being written,
+ *  its previous content is kept until it can be parsed again. If several
+ *  files have the same key, the first one by name is used.
+ *  Both cases are logged, once per file until their cause changes.
+ */
+class FileIndex {
+
+    /** Max nesting depth of the JSON files, checked before parsing them */
+    static final int MAX_DEPTH = 64;
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+    private final Path directory;
+    private final RegexFilter fileFilter;
+    private final SnapshotStore snapshots = new SnapshotStore();
+
+    /** Parsed content of each file, by key */
+    private final Map<String, Map<String, Object>> entries = new ConcurrentHashMap<>();
+
+    /** The file that provides each key */
+    private final Map<String, Path> owners = new ConcurrentHashMap<>();
+
+    /** Last warning logged for each file, to avoid repeating it */
+    private final Map<Path, String> warnings = new ConcurrentHashMap<>();
+    private final AtomicInteger warningCount = new AtomicInteger();
+    private final AtomicBoolean dirty = new AtomicBoolean(true);
+    private final AtomicInteger parseCount = new AtomicInteger();
+    private volatile Map<String, Object> snapshot = Collections.emptyMap();
+
+    /** @param directory the directory that contains the files
+     *  @param fileFilter selects files by name
+     */
+    FileIndex(Path directory, RegexFilter fileFilter) {
+        this.directory = directory;
+        this.fileFilter = fileFilter;
+    }
+
+    Path getDirectory() {
+        return directory;
+    }
+
+    /** Load all the files of our directory, and forget the ones that are gone */
+    void loadAll() throws IOException {
+        // Sorted by name, so that the first file wins if several have the same key
+        final TreeSet<Path> files = new TreeSet<>();
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+            for(Path p : ds) {
+                if(accept(p)) {
+                    files.add(p);
+                }
+            }
+        }
+        final Map<String, Path> found = new TreeMap<>();
+        for(Path p : files) {
+            final Path owner = found.putIfAbsent(toKey(p), p);
+            if(owner != null) {
+                warnCollision(p, owner);
+            }
+        }
+        entries.keySet().retainAll(found.keySet());
+        owners.keySet().retainAll(found.keySet());
+        warnings.keySet().retainAll(files);
+        owners.putAll(found);
+        for(Path p : found.values()) {
+            load(p);
+        }
+        dirty.set(true);
+    }
+
+    /** Reload a single file after it was created or modified
+     *  @param fileName the name of the file, relative to our directory
+     */
+    void fileChanged(Path fileName) {
+        final Path p = directory.resolve(fileName);
+        if(!accept(p)) {
+            return;
+        }
+        if(!Files.isRegularFile(p)) {
+            forget(p);
+            return;
+        }
+        final String key = toKey(p);
+        final Path owner = owners.get(key);
+        if(owner != null && !owner.equals(p) && Files.isRegularFile(owner)) {
+            if(owner.compareTo(p) < 0) {
+                warnCollision(p, owner);
+                return;
+            }
+            warnCollision(owner, p);
+        }
+        owners.put(key, p);
+        load(p);
+        dirty.set(true);
+    }
+
+    /** Forget a file after it was deleted
+     *  @param fileName the name of the file, relative to our directory
+     */
+    void fileDeleted(Path fileName) {
+        final Path p = directory.resolve(fileName);
+        if(accept(p)) {
+            forget(p);
+        }
+    }
+
+    /** Forget a file, and load another one that has the same key, if any */
+    private void forget(Path p) {
+        warnings.remove(p);
+        final String key = toKey(p);
+        if(!owners.remove(key, p)) {
+            return;
+        }
+        entries.remove(key);
+        dirty.set(true);
+        try(DirectoryStream<Path> ds = Files.newDirectoryStream(directory)) {
+            final TreeSet<Path> others = new TreeSet<>();
+            for(Path other : ds) {
+                if(accept(other) && key.equals(toKey(other)) && Files.isRegularFile(other)) {
+                    others.add(other);
+                }
+            }
+            if(!others.isEmpty()) {
+                owners.put(key, others.first());
+                load(others.first());
+            }
+        } catch(IOException e) {
+            warn(p, "Failed to look for other files with key " + key + ": " + e, null);
+        }
+    }
+
+    /** @return the current capabilities, a read-only Map */
+    Map<String, Object> getSnapshot() {
+        if(dirty.get()) {
+            synchronized (this) {
+                // Changes that happen while we rebuild set the flag again
+                if(dirty.compareAndSet(true, false)) {
+                    snapshot = snapshots.compact(new TreeMap<>(entries));
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /** @return how many times files have been parsed successfully, for testing */
+    int getParseCount() {
+        return parseCount.get();
+    }
+
+    /** @return how many warnings have been logged, for testing */
+    int getWarningCount() {
+        return warningCount.get();
+    }
+
+    private boolean accept(Path p) {
+        return fileFilter.accept(p.getFileName().toString());
+    }
+
+    private void load(Path p) {
+        try {
+            entries.put(toKey(p), parse(p));
+            parseCount.incrementAndGet();
+            warnings.remove(p);
+        } catch(IOException | RuntimeException e) {
+            // Keep the previous content, if any, the next change will retry
+            warn(p, "Failed to load " + p + ", keeping its previous content if any: " + e, e);
+        }
+    }
+
+    private void warnCollision(Path ignored, Path owner) {
+        warn(ignored, "Ignoring " + ignored + " which has the same key as " + owner, null);
+    }
+
+    /** Log a warning about a file, unless it's the same as the previous one for that file */
+    private void warn(Path p, String message, Exception e) {
+        if(!message.equals(warnings.put(p, message))) {
+            warningCount.incrementAndGet();
+            log.warn(message, e);
+        }
+    }
+
+    /** @return the file name without its extension */
+    static String toKey(Path p) {
+        final String name = p.getFileName().toString();
+        final int dot = name.lastIndexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    /** Parse a JSON file, which is read and decoded as a whole
+     *  @throws IOException if it's nested deeper than MAX_DEPTH
+     */
+    static Map<String, Object> parse(Path p) throws IOException {
+        final String json = new String(Files.readAllBytes(p), StandardCharsets.UTF_8);
+        checkDepth(json);
+        return new JSONParser(json).getParsed();
+    }
+
+    /** Check the nesting depth of JSON content, as the recursive parser
+     *  would otherwise need a stack that grows with it.
+     *  @throws IOException if it's nested deeper than MAX_DEPTH
+     */
+    static void checkDepth(String json) throws IOException {
+        int depth = 0;
+        boolean inString = false;
+        for(int i=0; i < json.length(); i++) {
+            final char c = json.charAt(i);
+            if(inString) {
+                if(c == '\\') {
+                    i++;
+                } else if(c == '"') {
+                    inString = false;
+                }
+            } else if(c == '"') {
+                inString = true;
+            } else if(c == '{' || c == '[') {
+                if(++depth > MAX_DEPTH) {
+                    throw new IOException("JSON content is nested deeper than " + MAX_DEPTH + " levels");
+                }
+            } else if(c == '}' || c == ']') {
+                depth--;
+            }
+        }
+    }
+}
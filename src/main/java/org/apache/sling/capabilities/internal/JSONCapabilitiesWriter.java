@@ -20,13 +20,15 @@ package org.apache.sling.capabilities.internal;
 
 import java.io.IOException;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.apache.felix.utils.json.JSONWriter;
-import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.capabilities.CapabilitiesSource;
 
 /** Create the JSON output of our servlet */
@@ -34,48 +36,327 @@ class JSONCapabilitiesWriter {
 
     static final String CAPS_KEY = "org.apache.sling.capabilities";
     static final String DATA_KEY = "data";
+    static final String BATCH_KEY = "batch";
+    static final String STATUS_KEY = "status";
+    static final String MESSAGE_KEY = "message";
+    static final String PEERS_KEY = "peers";
+    static final String OMITTED_KEY = "omitted";
+
+    /** An entry of a batch response: either an endpoint definition, or
+     *  an HTTP status and message that explain why it's missing.
+     */
+    static class BatchEntry {
+        final String path;
+        final EndpointDefinition endpoint;
+        final int status;
+        final String message;
+
+        BatchEntry(String path, EndpointDefinition endpoint) {
+            this(path, endpoint, 200, null);
+        }
+
+        BatchEntry(String path, int status, String message) {
+            this(path, null, status, message);
+        }
+
+        private BatchEntry(String path, EndpointDefinition endpoint, int status, String message) {
+            this.path = path;
+            this.endpoint = endpoint;
+            this.status = status;
+            this.message = message;
+        }
+    }
     
-    /** Write JSON to the supplied Writer, using the supplied sources */
-    void writeJson(ResourceResolver resolver, Writer w, Collection<CapabilitiesSource> sources, RegexFilter namespacePatterns) throws IOException {
-        final Set<String> namespaces = new HashSet<>();
+    private final ServerTiming timing;
+    private final CacheHeaders cacheHeaders;
+    private final SourceValues values;
+
+    /** @param context provides the request's ResourceResolver and what's
+     *  used to invoke the CapabilitiesSources and record what's output
+     */
+    JSONCapabilitiesWriter(RequestContext context) {
+        this.timing = context.getTiming();
+        this.cacheHeaders = context.getCacheHeaders();
+        this.values = new SourceValues(context);
+    }
+
+    /** Invoke the sources that writeJson outputs, so that the cache
+     *  headers are complete before writing anything. Optional, writeJson
+     *  only invokes the sources that were not invoked yet.
+     */
+    void prepareJson(EndpointDefinition endpoint, Projection projection, boolean includePeers) throws IOException {
+        prepareData(endpoint, projection);
+        if(includePeers) {
+            cacheHeaders.addUncacheable();
+        }
+    }
+
+    /** Invoke the sources that writeBatchJson outputs, like prepareJson */
+    void prepareBatchJson(Collection<BatchEntry> entries, Projection projection) throws IOException {
+        for(BatchEntry e : entries) {
+            if(e.endpoint != null) {
+                prepareData(e.endpoint, projection);
+            }
+        }
+    }
+
+    private void prepareData(EndpointDefinition endpoint, Projection projection) throws IOException {
+        final Set<String> namespaces = endpoint.hasDistinctNamespaces() ? null : new HashSet<>();
+        for(CapabilitiesSource s : endpoint.getSources()) {
+            if(isSelected(s, projection, namespaces)) {
+                getValues(s, endpoint, projection);
+            }
+        }
+    }
+
+    /** Write the JSON output of the supplied endpoint, limited to
+     *  the supplied Projection, followed by the responses of peers
+     *  if not null.
+     */
+    void writeJson(Writer w, EndpointDefinition endpoint, Projection projection,
+            Map<String, CompletableFuture<PeerClient.PeerResponse>> peers) throws IOException {
+        long start = timing.start();
+        final JSONWriter jw = new JSONWriter(w);
+        jw.object();
+        jw.key(CAPS_KEY);
+        jw.object();
+        timing.add(ServerTiming.SERIALIZE, start);
+
+        writeData(jw, endpoint, projection);
+        if(peers != null) {
+            writePeers(jw, peers, projection);
+        }
+
+        start = timing.start();
+        jw.endObject();
+        jw.endObject();
+        timing.add(ServerTiming.SERIALIZE, start);
+    }
+
+    /** Write the capabilities of each peer under its name, or the status
+     *  and message that explain why they are missing. The futures complete
+     *  within the peer timeout, so this does not block for long.
+     */
+    private void writePeers(JSONWriter jw, Map<String, CompletableFuture<PeerClient.PeerResponse>> peers,
+            Projection projection) throws IOException {
+        cacheHeaders.addUncacheable();
+        jw.key(PEERS_KEY);
+        jw.object();
+        for(Map.Entry<String, CompletableFuture<PeerClient.PeerResponse>> e : peers.entrySet()) {
+            long start = timing.start();
+            final PeerClient.PeerResponse r = e.getValue().join();
+            timing.add(ServerTiming.PEERS, start);
+
+            start = timing.start();
+            jw.key(e.getKey());
+            jw.object();
+            if(r.data == null) {
+                jw.key(STATUS_KEY);
+                jw.value(r.status);
+                jw.key(MESSAGE_KEY);
+                jw.value(r.message);
+            } else {
+                jw.key(DATA_KEY);
+                jw.object();
+                for(Map.Entry<String, Object> ns : r.data.entrySet()) {
+                    if(projection.acceptsNamespace(ns.getKey()) && ns.getValue() instanceof Map) {
+                        jw.key(ns.getKey());
+                        writeParsed(jw, selectKeys((Map<?, ?>)ns.getValue(), projection.getKeys(ns.getKey())));
+                    }
+                }
+                jw.endObject();
+            }
+            jw.endObject();
+            timing.add(ServerTiming.SERIALIZE, start);
+        }
+        jw.endObject();
+    }
+
+    private static Map<?, ?> selectKeys(Map<?, ?> values, Set<String> keys) {
+        if(keys == null || values.containsKey(SourceValues.EXCEPTION_KEY)) {
+            return values;
+        }
+        final Map<Object, Object> result = new LinkedHashMap<>();
+        for(String k : keys) {
+            if(values.containsKey(k)) {
+                result.put(k, values.get(k));
+            }
+        }
+        return result;
+    }
 
+    /** Write a value, including nested Maps and Collections like the ones parsed from JSON */
+    private static void writeParsed(JSONWriter jw, Object value) throws IOException {
+        if(value instanceof Map) {
+            jw.object();
+            for(Map.Entry<?, ?> e : ((Map<?, ?>)value).entrySet()) {
+                jw.key(String.valueOf(e.getKey()));
+                writeParsed(jw, e.getValue());
+            }
+            jw.endObject();
+        } else if(value instanceof Collection) {
+            jw.array();
+            for(Object o : (Collection<?>)value) {
+                writeParsed(jw, o);
+            }
+            jw.endArray();
+        } else {
+            jw.value(value);
+        }
+    }
+
+    /** Write the JSON output of several endpoints to the supplied Writer,
+     *  invoking each CapabilitiesSource at most once.
+     */
+    void writeBatchJson(Writer w, Collection<BatchEntry> entries, Projection projection) throws IOException {
+        long start = timing.start();
         final JSONWriter jw = new JSONWriter(w);
         jw.object();
         jw.key(CAPS_KEY);
         jw.object();
+        jw.key(BATCH_KEY);
+        jw.object();
+        timing.add(ServerTiming.SERIALIZE, start);
+
+        for(BatchEntry e : entries) {
+            start = timing.start();
+            jw.key(e.path);
+            jw.object();
+            if(e.endpoint == null) {
+                jw.key(STATUS_KEY);
+                jw.value(e.status);
+                jw.key(MESSAGE_KEY);
+                jw.value(e.message);
+                timing.add(ServerTiming.SERIALIZE, start);
+            } else {
+                timing.add(ServerTiming.SERIALIZE, start);
+                writeData(jw, e.endpoint, projection);
+            }
+            start = timing.start();
+            jw.endObject();
+            timing.add(ServerTiming.SERIALIZE, start);
+        }
+
+        start = timing.start();
+        jw.endObject();
+        jw.endObject();
+        jw.endObject();
+        timing.add(ServerTiming.SERIALIZE, start);
+    }
+
+    /** Write the data key and the capabilities of the endpoint's sources,
+     *  limited to the selected namespaces and keys, followed by the list of
+     *  namespaces that were omitted as the latency budget ran out, if any.
+     */
+    private void writeData(JSONWriter jw, EndpointDefinition endpoint, Projection projection) throws IOException {
+        // Only check for duplicate namespaces if the endpoint has some
+        final Set<String> namespaces = endpoint.hasDistinctNamespaces() ? null : new HashSet<>();
+        List<String> omitted = null;
+
+        long start = timing.start();
         jw.key(DATA_KEY);
         jw.object();
+        timing.add(ServerTiming.SERIALIZE, start);
         
-        Map<String, Object> values = null;
-        for(CapabilitiesSource s : sources) {
-            
-            final String namespace = s.getNamespace();
-            if(!namespacePatterns.accept(namespace)) {
+        for(CapabilitiesSource s : endpoint.getSources()) {
+            if(!isSelected(s, projection, namespaces)) {
                 continue;
             }
-            if(namespaces.contains(namespace)) {
-              throw new DuplicateNamespaceException(namespace);
-            }
-            namespaces.add(namespace);
-            
-            try {
-                values = s.getCapabilities(resolver);
-            } catch(Exception e) {
-                values = new HashMap<>();
-                values.put("_EXCEPTION_", e.getClass().getName() + ":" + e.getMessage());
+            final String namespace = s.getNamespace();
+            final Map<String, Object> nsValues = getValues(s, endpoint, projection);
+            if(nsValues == null) {
+                if(omitted == null) {
+                    omitted = new ArrayList<>();
+                }
+                omitted.add(namespace);
+                continue;
             }
 
+            start = timing.start();
             jw.key(namespace);
             jw.object();
-            for(Map.Entry<String, Object> e : values.entrySet()) {
-                jw.key(e.getKey());
-                jw.value(e.getValue());
-            }
+            writeValues(jw, nsValues, endpoint.getKeyFilter(namespace), projection.getKeys(namespace));
             jw.endObject();
+            timing.add(ServerTiming.SERIALIZE, start);
         }
         
+        start = timing.start();
         jw.endObject();
-        jw.endObject();
-        jw.endObject();
+        if(omitted != null) {
+            jw.key(OMITTED_KEY);
+            jw.array();
+            for(String ns : omitted) {
+                jw.value(ns);
+            }
+            jw.endArray();
+        }
+        timing.add(ServerTiming.SERIALIZE, start);
+    }
+
+    /** @return true if the source is output with the supplied projection
+     *  @param namespaces if not null, the namespaces output so far, to which
+     *      that of the source is added after checking that it's not there yet
+     */
+    private boolean isSelected(CapabilitiesSource s, Projection projection, Set<String> namespaces) throws IOException {
+        final long start = timing.start();
+        final String namespace = s.getNamespace();
+        final boolean accepted = projection.acceptsNamespace(namespace) && values.isAccessible(s);
+        timing.add(ServerTiming.FILTER, start);
+        if(accepted && namespaces != null && !namespaces.add(namespace)) {
+            throw new DuplicateNamespaceException(namespace);
+        }
+        return accepted;
+    }
+
+    /** Get the values of a source, invoking it if needed, and record
+     *  how they affect the cache headers.
+     *  @return null if the source was omitted as the latency budget ran out
+     */
+    private Map<String, Object> getValues(CapabilitiesSource s, EndpointDefinition endpoint, Projection projection) {
+        final String namespace = s.getNamespace();
+        final Map<String, Object> result = values.get(s, endpoint.getKeyFilter(namespace), projection.getKeys(namespace));
+        if(result == null) {
+            cacheHeaders.addUncacheable();
+            return null;
+        }
+        cacheHeaders.addSource(s, namespace);
+        if(result.containsKey(SourceValues.EXCEPTION_KEY)) {
+            cacheHeaders.addUncacheable();
+        }
+        return result;
+    }
+
+    /** Write the values whose keys are accepted by keyFilter and present in
+     *  requestedKeys, both being optional. Only looks up the selected keys
+     *  if they are known, to avoid iterating over all values.
+     */
+    private void writeValues(JSONWriter jw, Map<String, Object> values, RegexFilter keyFilter, Set<String> requestedKeys) throws IOException {
+        if(values.containsKey(SourceValues.EXCEPTION_KEY)) {
+            // always show errors
+            writeValue(jw, SourceValues.EXCEPTION_KEY, values.get(SourceValues.EXCEPTION_KEY));
+        } else if(requestedKeys != null) {
+            for(String key : requestedKeys) {
+                if((keyFilter == null || keyFilter.accept(key)) && values.containsKey(key)) {
+                    writeValue(jw, key, values.get(key));
+                }
+            }
+        } else if(keyFilter != null && keyFilter.isLiteralOnly()) {
+            for(String key : keyFilter.getLiterals()) {
+                if(values.containsKey(key)) {
+                    writeValue(jw, key, values.get(key));
+                }
+            }
+        } else {
+            for(Map.Entry<String, Object> e : values.entrySet()) {
+                if(keyFilter == null || keyFilter.accept(e.getKey())) {
+                    writeValue(jw, e.getKey(), e.getValue());
+                }
+            }
+        }
+    }
+
+    private void writeValue(JSONWriter jw, String key, Object value) throws IOException {
+        jw.key(key);
+        writeParsed(jw, value);
     }
-}
\ No newline at end of file
+}
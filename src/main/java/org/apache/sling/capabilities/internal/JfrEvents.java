@@ -0,0 +1,103 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+/** Records our JFR events, if the optional jdk.jfr package is available.
+ *
+ *  The begin methods return null if that's not the case or if the event
+ *  is disabled, so that disabled events only cost a null check. Their
+ *  return values are Objects so that callers do not depend on jdk.jfr classes.
+ */
+class JfrEvents {
+
+    static final String OUTCOME_OK = "ok";
+    static final String OUTCOME_ERROR = "error";
+    static final String OUTCOME_OMITTED = "omitted";
+    static final String OUTCOME_REJECTED = "rejected";
+
+    static final boolean AVAILABLE = isAvailable();
+
+    private JfrEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, JfrEvents.class.getClassLoader());
+            return true;
+        } catch(ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    /** @return an event to pass to endRequest, null if not recording */
+    static Object beginRequest() {
+        if(!AVAILABLE) {
+            return null;
+        }
+        final RequestEvent e = new RequestEvent();
+        if(!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    static void endRequest(Object event, String path, boolean batch, int patternCount, int namespaces, long bytesWritten) {
+        if(event == null) {
+            return;
+        }
+        final RequestEvent e = (RequestEvent)event;
+        e.end();
+        if(e.shouldCommit()) {
+            e.path = path;
+            e.batch = batch;
+            e.patternCount = patternCount;
+            e.namespaces = namespaces;
+            e.bytesWritten = bytesWritten;
+            e.commit();
+        }
+    }
+
+    /** @return an event to pass to endSourceInvocation, null if not recording */
+    static Object beginSourceInvocation() {
+        if(!AVAILABLE) {
+            return null;
+        }
+        final SourceInvocationEvent e = new SourceInvocationEvent();
+        if(!e.isEnabled()) {
+            return null;
+        }
+        e.begin();
+        return e;
+    }
+
+    static void endSourceInvocation(Object event, String namespace, String outcome, int entries) {
+        if(event == null) {
+            return;
+        }
+        final SourceInvocationEvent e = (SourceInvocationEvent)event;
+        e.end();
+        if(e.shouldCommit()) {
+            e.namespace = namespace;
+            e.outcome = outcome;
+            e.entries = entries;
+            e.commit();
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+
+/** Request-wide latency budget: CapabilitiesSources are invoked one at a
+ *  time on an executor, and once the deadline has passed the current
+ *  invocation is abandoned and the remaining ones are skipped.
+ *
+ *  Abandoned invocations are not interrupted, as that can leave the
+ *  resources that they use in an unusable state, so they keep their
+ *  executor thread until they complete. They might also still use their
+ *  ResourceResolver after the request is done, so invocations get a
+ *  clone of the request's ResourceResolver, which is closed by close(),
+ *  or later by an abandoned invocation once it completes.
+ *
+ *  The NONE budget invokes the sources directly.
+ */
+class LatencyBudget implements AutoCloseable {
+
+    static final LatencyBudget NONE = new LatencyBudget(null, 0);
+
+    private final ExecutorService executor;
+    private final long deadlineNanos;
+    private boolean exhausted;
+    private int rejections;
+    private ResourceResolver clone;
+    private boolean cloneFailed;
+
+    /** This object until it's closed, and the current invocation, use the clone */
+    private final AtomicInteger cloneUsers = new AtomicInteger(1);
+
+    /** @param deadlineNanos in the System.nanoTime() scale */
+    LatencyBudget(ExecutorService executor, long deadlineNanos) {
+        this.executor = executor;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    /** @param resolver the request's ResourceResolver, which is cloned
+     *      for invocations that run on the executor
+     *  @return the result of invocation, or null if it did not complete
+     *  within the budget or if no executor thread was available.
+     */
+    Map<String, Object> invoke(ResourceResolver resolver, Function<ResourceResolver, Map<String, Object>> invocation) {
+        if(executor == null) {
+            return invocation.apply(resolver);
+        }
+        if(exhausted) {
+            return null;
+        }
+        final long remaining = deadlineNanos - System.nanoTime();
+        if(remaining <= 0) {
+            exhausted = true;
+            return null;
+        }
+        final ResourceResolver r = getClone(resolver);
+        if(r == null) {
+            // Better to ignore the budget than to share the request's resolver
+            return invocation.apply(resolver);
+        }
+
+        // The invocation releases the clone, unless it never starts
+        final AtomicBoolean started = new AtomicBoolean();
+        cloneUsers.incrementAndGet();
+        final Future<Map<String, Object>> f;
+        try {
+            f = executor.submit(() -> {
+                if(!started.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    return invocation.apply(r);
+                } finally {
+                    release(r);
+                }
+            });
+        } catch(RejectedExecutionException ree) {
+            // All executor threads are busy, probably with slow sources
+            release(r);
+            rejections++;
+            return null;
+        }
+        try {
+            return f.get(remaining, TimeUnit.NANOSECONDS);
+        } catch(TimeoutException te) {
+            abandon(f, started, r);
+            return null;
+        } catch(InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            abandon(f, started, r);
+            return null;
+        } catch(ExecutionException ee) {
+            // CircuitBreakers catch the source's exceptions, so this is unexpected
+            final Throwable cause = ee.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException)cause : new IllegalStateException(cause);
+        }
+    }
+
+    /** @return the number of invocations that were skipped as no
+     *  executor thread was available.
+     */
+    int getRejections() {
+        return rejections;
+    }
+
+    /** Release our ResourceResolver clone, which is closed now or
+     *  once the abandoned invocation, if any, completes.
+     */
+    @Override
+    public void close() {
+        if(clone != null) {
+            release(clone);
+            clone = null;
+        }
+    }
+
+    private void abandon(Future<?> f, AtomicBoolean started, ResourceResolver r) {
+        exhausted = true;
+        f.cancel(false);
+        if(started.compareAndSet(false, true)) {
+            release(r);
+        }
+    }
+
+    private ResourceResolver getClone(ResourceResolver resolver) {
+        if(clone == null && !cloneFailed) {
+            try {
+                clone = resolver == null ? null : resolver.clone(null);
+            } catch(LoginException le) {
+                clone = null;
+            }
+            cloneFailed = clone == null;
+        }
+        return clone;
+    }
+
+    private void release(ResourceResolver r) {
+        if(cloneUsers.decrementAndGet() == 0) {
+            r.close();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.felix.utils.json.JSONParser;
+
+/** Fetches the capabilities of peer instances concurrently, with
+ *  bounded timeouts. Requests run in a bounded pool of threads, so
+ *  that waiting for peers does not block the request threads longer
+ *  than the timeout.
+ *
+ *  The last response of each peer is cached along with its ETag,
+ *  to make conditional requests. Peers are requested without
+ *  credentials, so the same cached response can be used for all
+ *  users, and with a PEER_HEADER so that peers do not include their
+ *  own peers in their response, which could cause request loops.
+ */
+class PeerClient {
+
+    static final String IF_NONE_MATCH = "If-None-Match";
+    static final String ETAG = "ETag";
+    static final String PEER_HEADER = "Sling-Capabilities-Peer";
+
+    /** Max number of concurrent requests to each peer */
+    static final int MAX_THREADS_PER_PEER = 4;
+
+    /** The capabilities of a peer, or an HTTP status and message
+     *  that explain why they are missing.
+     */
+    static class PeerResponse {
+        final Map<String, Object> data;
+        final int status;
+        final String message;
+
+        PeerResponse(Map<String, Object> data) {
+            this(data, 200, null);
+        }
+
+        PeerResponse(int status, String message) {
+            this(null, status, message);
+        }
+
+        private PeerResponse(Map<String, Object> data, int status, String message) {
+            this.data = data;
+            this.status = status;
+            this.message = message;
+        }
+    }
+
+    private static class CachedResponse {
+        final String etag;
+        final PeerResponse response;
+
+        CachedResponse(String etag, PeerResponse response) {
+            this.etag = etag;
+            this.response = response;
+        }
+    }
+
+    private final Map<String, URI> peers;
+    private final long timeoutMsec;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final Map<String, CachedResponse> cache = new ConcurrentHashMap<>();
+    private final SnapshotStore snapshots;
+
+    /** @param peers peer names to the URLs of their capabilities endpoints
+     *  @param timeoutMsec max time to wait for each peer
+     */
+    PeerClient(Map<String, URI> peers, long timeoutMsec) {
+        this(peers, timeoutMsec, new SnapshotStore());
+    }
+
+    /** @param snapshots used to store compact copies of the peer responses */
+    PeerClient(Map<String, URI> peers, long timeoutMsec, SnapshotStore snapshots) {
+        this.snapshots = snapshots;
+        this.peers = peers;
+        this.timeoutMsec = timeoutMsec;
+        final AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(0, Math.max(1, peers.size() * MAX_THREADS_PER_PEER), 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), r -> daemon(r, "sling-capabilities-peer-" + counter.incrementAndGet()));
+        final ScheduledThreadPoolExecutor t = new ScheduledThreadPoolExecutor(1, r -> daemon(r, "sling-capabilities-peer-timer"));
+        t.setRemoveOnCancelPolicy(true);
+        this.timer = t;
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        final Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /** Stop our threads, pending requests are abandoned */
+    void close() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /** Parse peer definitions in the name=URL format
+     *  @throws IllegalArgumentException if a definition is invalid
+     */
+    static Map<String, URI> parsePeers(String [] definitions) {
+        final Map<String, URI> result = new LinkedHashMap<>();
+        if(definitions != null) {
+            for(String d : definitions) {
+                final int eq = d.indexOf('=');
+                if(eq <= 0) {
+                    throw new IllegalArgumentException("Invalid peer definition, must be name=URL: " + d);
+                }
+                final URI uri = URI.create(d.substring(eq + 1).trim());
+                if(!"http".equals(uri.getScheme()) && !"https".equals(uri.getScheme())) {
+                    throw new IllegalArgumentException("Invalid peer URL, must be http or https: " + d);
+                }
+                result.put(d.substring(0, eq).trim(), uri);
+            }
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /** Request all peers concurrently.
+     *  @return a future per peer name, in the order of their definitions,
+     *      which completes with a 504 status if the peer is too slow
+     */
+    Map<String, CompletableFuture<PeerResponse>> fetchAll() {
+        final Map<String, CompletableFuture<PeerResponse>> result = new LinkedHashMap<>();
+        for(Map.Entry<String, URI> e : peers.entrySet()) {
+            result.put(e.getKey(), fetch(e.getKey(), e.getValue()));
+        }
+        return result;
+    }
+
+    private CompletableFuture<PeerResponse> fetch(String name, URI uri) {
+        final CompletableFuture<PeerResponse> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(request(name, uri));
+                } catch(Exception e) {
+                    result.complete(toFailure(e));
+                }
+            });
+            final ScheduledFuture<?> timeout = timer.schedule(
+                () -> result.complete(new PeerResponse(504, "Timeout after " + timeoutMsec + " msec")),
+                timeoutMsec, TimeUnit.MILLISECONDS);
+            result.whenComplete((r, t) -> timeout.cancel(false));
+        } catch(RejectedExecutionException e) {
+            result.complete(new PeerResponse(503, "Too many concurrent requests to peer " + name));
+        }
+        return result;
+    }
+
+    private PeerResponse request(String name, URI uri) throws IOException {
+        final CachedResponse cached = cache.get(name);
+        final int timeout = (int)Math.min(timeoutMsec, Integer.MAX_VALUE);
+        final HttpURLConnection c = (HttpURLConnection)uri.toURL().openConnection();
+        c.setConnectTimeout(timeout);
+        c.setReadTimeout(timeout);
+        c.setInstanceFollowRedirects(false);
+        c.setUseCaches(false);
+        c.setRequestProperty("Accept", "application/json");
+        c.setRequestProperty(PEER_HEADER, "true");
+        if(cached != null) {
+            c.setRequestProperty(IF_NONE_MATCH, cached.etag);
+        }
+        final int status = c.getResponseCode();
+        if(status == 304 && cached != null) {
+            return cached.response;
+        }
+        if(status != 200) {
+            c.disconnect();
+            return new PeerResponse(502, "Peer returned HTTP status " + status);
+        }
+        final String body;
+        try(InputStream is = c.getInputStream()) {
+            body = readString(is);
+        }
+        final PeerResponse result = new PeerResponse(snapshots.compact(parseData(body)));
+        final String etag = c.getHeaderField(ETAG);
+        if(etag == null) {
+            cache.remove(name);
+        } else {
+            cache.put(name, new CachedResponse(etag, result));
+        }
+        return result;
+    }
+
+    private static String readString(InputStream is) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final byte [] buffer = new byte[4096];
+        int n;
+        while((n = is.read(buffer)) > 0) {
+            bos.write(buffer, 0, n);
+        }
+        return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /** @return the data object of our JSON output */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> parseData(String json) {
+        final Object data;
+        try {
+            final Object caps = new JSONParser(json).getParsed().get(JSONCapabilitiesWriter.CAPS_KEY);
+            data = caps instanceof Map ? ((Map<String, Object>)caps).get(JSONCapabilitiesWriter.DATA_KEY) : null;
+        } catch(Exception e) {
+            throw new IllegalArgumentException("Invalid JSON from peer: " + e.getMessage(), e);
+        }
+        if(!(data instanceof Map)) {
+            throw new IllegalArgumentException("Invalid capabilities from peer, missing " + JSONCapabilitiesWriter.DATA_KEY + " object");
+        }
+        return (Map<String, Object>)data;
+    }
+
+    private static PeerResponse toFailure(Throwable t) {
+        final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        if(cause instanceof SocketTimeoutException) {
+            return new PeerResponse(504, cause.getMessage());
+        }
+        return new PeerResponse(502, cause.getClass().getName() + ":" + cause.getMessage());
+    }
+}
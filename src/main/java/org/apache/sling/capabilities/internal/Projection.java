@@ -0,0 +1,95 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/** Selection of namespaces and keys requested by the client, using
+ *  JSON-pointer style paths like /namespace or /namespace/key
+ */
+class Projection {
+
+    /** Selects everything */
+    static final Projection ALL = new Projection(null);
+
+    /** Requested keys by namespace, an empty Set meaning all keys, or null
+     *  if everything is requested */
+    private final Map<String, Set<String>> fields;
+
+    private Projection(Map<String, Set<String>> fields) {
+        this.fields = fields;
+    }
+
+    /** Parse the supplied JSON-pointer style paths, where ~1 and ~0
+     *  represent / and ~ respectively
+     *  @return ALL if paths is null
+     *  @throws IllegalArgumentException if a path is invalid
+     */
+    static Projection parse(String ... paths) {
+        if(paths == null) {
+            return ALL;
+        }
+        final Map<String, Set<String>> fields = new HashMap<>();
+        for(String path : paths) {
+            if(!path.startsWith("/") || path.length() < 2) {
+                throw new IllegalArgumentException("Invalid path, must be /namespace or /namespace/key: " + path);
+            }
+            final String [] segments = path.substring(1).split("/", -1);
+            if(segments.length > 2) {
+                throw new IllegalArgumentException("Invalid path, must be /namespace or /namespace/key: " + path);
+            }
+            final String namespace = unescape(segments[0]);
+            Set<String> keys = fields.get(namespace);
+            if(keys == null) {
+                keys = new HashSet<>();
+                fields.put(namespace, keys);
+            } else if(keys.isEmpty()) {
+                // already selecting all keys
+                continue;
+            }
+            if(segments.length == 1) {
+                fields.put(namespace, Collections.<String>emptySet());
+            } else {
+                keys.add(unescape(segments[1]));
+            }
+        }
+        return new Projection(fields);
+    }
+
+    private static String unescape(String segment) {
+        return segment.replace("~1", "/").replace("~0", "~");
+    }
+
+    boolean acceptsNamespace(String namespace) {
+        return fields == null || fields.containsKey(namespace);
+    }
+
+    /** @return the requested keys for namespace, null if all keys are requested */
+    Set<String> getKeys(String namespace) {
+        if(fields == null) {
+            return null;
+        }
+        final Set<String> result = fields.get(namespace);
+        return result == null || result.isEmpty() ? null : result;
+    }
+}
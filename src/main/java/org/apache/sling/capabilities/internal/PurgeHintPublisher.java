@@ -0,0 +1,53 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventAdmin;
+
+/** Posts events that hint at purging the cached outputs which include
+ *  a namespace, when its CapabilitiesSource changes. Only active if an
+ *  EventAdmin is available, so that the CapabilitiesServlet does not
+ *  need the (optional) event package.
+ */
+@Component(service = SourceChangeListener.class)
+public class PurgeHintPublisher implements SourceChangeListener {
+
+    /** Topic of the events that hint at purging cached outputs which include a namespace */
+    public static final String PURGE_TOPIC = "org/apache/sling/capabilities/PURGE";
+
+    /** Property of the purge events that contains the namespace to purge */
+    public static final String PURGE_NAMESPACE = "namespace";
+
+    @Reference
+    private EventAdmin eventAdmin;
+
+    @Override
+    public void sourceChanged(String namespace) {
+        if(namespace != null) {
+            final Map<String, Object> props = new HashMap<>();
+            props.put(PURGE_NAMESPACE, namespace);
+            eventAdmin.postEvent(new Event(PURGE_TOPIC, props));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Map;
+import java.util.function.Function;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import org.osgi.framework.ServiceReference;
+
+/** CapabilitiesSource that gets the actual service only when
+ *  needed, using its NAMESPACE_PROPERTY service property if present
+ *  to provide its namespace without getting the service.
+ */
+class ReferencedSource implements CapabilitiesSource {
+
+    private final ServiceReference<CapabilitiesSource> reference;
+    private final String declaredNamespace;
+    private final long lifetimeSeconds;
+    private final AccessRequirements accessRequirements;
+    private final Function<ServiceReference<CapabilitiesSource>, CapabilitiesSource> locator;
+    private volatile CapabilitiesSource service;
+
+    /** @param locator provides the service for our ServiceReference */
+    ReferencedSource(ServiceReference<CapabilitiesSource> reference,
+            Function<ServiceReference<CapabilitiesSource>, CapabilitiesSource> locator) {
+        this.reference = reference;
+        this.locator = locator;
+        final Object ns = reference.getProperty(NAMESPACE_PROPERTY);
+        this.declaredNamespace = ns == null ? null : ns.toString();
+        this.lifetimeSeconds = parseLifetime(reference.getProperty(LIFETIME_PROPERTY));
+        final Object paths = reference.getProperty(REQUIRED_PATH_PROPERTY);
+        final Object users = reference.getProperty(REQUIRED_USER_PROPERTY);
+        this.accessRequirements = paths == null && users == null ? AccessRequirements.NONE : new AccessRequirements(paths, users);
+    }
+
+    /** @return the lifetime in seconds, -1 if missing or invalid */
+    static long parseLifetime(Object value) {
+        long result = -1;
+        if(value instanceof Number) {
+            result = ((Number)value).longValue();
+        } else if(value != null) {
+            try {
+                result = Long.parseLong(value.toString().trim());
+            } catch(NumberFormatException ignore) {
+                // invalid means unknown
+            }
+        }
+        return result < 0 ? -1 : result;
+    }
+
+    /** @return the declared lifetime of our capabilities in seconds, -1 if unknown */
+    long getLifetimeSeconds() {
+        return lifetimeSeconds;
+    }
+
+    /** @return the declared access requirements, which can be checked without getting the service */
+    AccessRequirements getAccessRequirements() {
+        return accessRequirements;
+    }
+
+    ServiceReference<CapabilitiesSource> getReference() {
+        return reference;
+    }
+
+    /** @return true if the actual service has been obtained */
+    boolean hasService() {
+        return service != null;
+    }
+
+    /** @return the service, null if not available */
+    private CapabilitiesSource locateService() {
+        CapabilitiesSource result = service;
+        if(result == null) {
+            result = locator.apply(reference);
+            service = result;
+        }
+        return result;
+    }
+
+    /** @return our namespace if it's known without getting the service, null otherwise */
+    String getKnownNamespace() {
+        if(declaredNamespace != null) {
+            return declaredNamespace;
+        }
+        final CapabilitiesSource s = service;
+        return s == null ? null : s.getNamespace();
+    }
+
+    @Override
+    public String getNamespace() {
+        if(declaredNamespace != null) {
+            return declaredNamespace;
+        }
+        final CapabilitiesSource s = locateService();
+        return s == null ? null : s.getNamespace();
+    }
+
+    @Override
+    public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+        final CapabilitiesSource s = locateService();
+        if(s == null) {
+            throw new IllegalStateException("CapabilitiesSource service not available: " + reference);
+        }
+        return s.getCapabilities(resolver);
+    }
+}
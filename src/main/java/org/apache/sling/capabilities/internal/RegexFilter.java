@@ -18,32 +18,269 @@
  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
 package org.apache.sling.capabilities.internal;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
 /** Filter that checks if a given String matches at least one of a set of
  *  regexps.
+ *
+ *  As the patterns usually are literal names or simple prefixes, those
+ *  are recognized and checked without using regexps, which are only used
+ *  for the other patterns. Results are memoized, as the set of candidate
+ *  Strings is usually small.
+ *
+ *  As the patterns come from repository content, patterns which are
+ *  likely to cause catastrophic backtracking are refused, and regexp
+ *  matching is bounded in any case.
  */
 class RegexFilter {
     
-    private final Pattern [] patterns;
+    /** Max number of memoized results */
+    static final int MAX_MEMOIZED = 1024;
+
+    /** Max number of characters read by regexp matching, per candidate character */
+    static final int MAX_READS_PER_CHAR = 1000;
+
+    private static final String REGEX_META = "\\^$.|?*+()[]{}";
+
+    private final Set<String> literals = new HashSet<>();
+    private final List<String> prefixes = new ArrayList<>();
+    private final List<Pattern> patterns = new ArrayList<>();
+    private final Map<String, Boolean> memo = new ConcurrentHashMap<>();
     
+    /** @throws IllegalArgumentException if a pattern is invalid or likely
+     *  to cause catastrophic backtracking
+     */
     RegexFilter(String ... regexp) {
-        if(regexp == null) {
-            patterns = new Pattern[0];
-        } else {
-            patterns = new Pattern[regexp.length];
-            for(int i=0; i < regexp.length; i++) {
-                patterns[i] = Pattern.compile(regexp[i]);
+        if(regexp != null) {
+            for(String r : regexp) {
+                final String literal = literalValue(r, r.length());
+                if(literal != null) {
+                    literals.add(literal);
+                    continue;
+                }
+                if(r.endsWith(".*")) {
+                    final String prefix = literalValue(r, r.length() - 2);
+                    if(prefix != null) {
+                        prefixes.add(prefix);
+                        continue;
+                    }
+                }
+                if(hasNestedQuantifiers(r)) {
+                    throw new IllegalArgumentException("Pattern might cause catastrophic backtracking, refused: " + r);
+                }
+                patterns.add(Pattern.compile(r));
             }
         }
     }
     
+    /** @return true if all our patterns are literals, which
+     *  getLiterals() then returns
+     */
+    boolean isLiteralOnly() {
+        return prefixes.isEmpty() && patterns.isEmpty();
+    }
+
+    /** @return the literal Strings which our patterns accept */
+    Set<String> getLiterals() {
+        return Collections.unmodifiableSet(literals);
+    }
+
     boolean accept(String candidate) {
-        for(Pattern p : patterns) {
-            if(p.matcher(candidate).matches()) {
+        if(candidate == null) {
+            return false;
+        }
+        Boolean result = memo.get(candidate);
+        if(result == null) {
+            result = compute(candidate);
+            if(memo.size() < MAX_MEMOIZED) {
+                memo.put(candidate, result);
+            }
+        }
+        return result;
+    }
+
+    private boolean compute(String candidate) {
+        if(literals.contains(candidate)) {
+            return true;
+        }
+        for(String prefix : prefixes) {
+            if(candidate.startsWith(prefix)) {
                 return true;
             }
         }
+        for(Pattern p : patterns) {
+            try {
+                if(p.matcher(new BoundedCharSequence(candidate)).matches()) {
+                    return true;
+                }
+            } catch(BoundedCharSequence.LimitExceededException ignored) {
+                // consider this a non-match
+            }
+        }
         return false;
     }
-}
\ No newline at end of file
+
+    /** @return the literal String that regexp matches, considering the
+     *  first end characters, or null if that's not a literal
+     */
+    static String literalValue(String regexp, int end) {
+        final StringBuilder sb = new StringBuilder(end);
+        for(int i=0; i < end; i++) {
+            final char c = regexp.charAt(i);
+            if(c == '\\') {
+                if(i + 1 >= end) {
+                    return null;
+                }
+                final char next = regexp.charAt(++i);
+                if(next == 'Q') {
+                    final int quoteEnd = regexp.indexOf("\\E", i);
+                    if(quoteEnd < 0 || quoteEnd + 2 > end) {
+                        return null;
+                    }
+                    sb.append(regexp, i + 1, quoteEnd);
+                    i = quoteEnd + 1;
+                } else if(REGEX_META.indexOf(next) >= 0 || "/-_:@#%&=!<>,;'\"`~ ".indexOf(next) >= 0) {
+                    sb.append(next);
+                } else {
+                    // character classes like \d, \w etc.
+                    return null;
+                }
+            } else if(REGEX_META.indexOf(c) >= 0) {
+                return null;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    /** Detect a quantified group which itself contains an unbounded
+     *  quantifier, like (a+)+ or (.*x)*, which causes exponential
+     *  backtracking when matching fails.
+     */
+    static boolean hasNestedQuantifiers(String regexp) {
+        // For each open group, whether it contains an unbounded quantifier
+        final List<Boolean> groups = new ArrayList<>();
+        boolean lastGroupQuantified = false;
+        final int len = regexp.length();
+        for(int i=0; i < len; i++) {
+            final char c = regexp.charAt(i);
+            if(c == '\\') {
+                i++;
+                lastGroupQuantified = false;
+            } else if(c == '[') {
+                // skip character class
+                i++;
+                if(i < len && regexp.charAt(i) == '^') {
+                    i++;
+                }
+                if(i < len && regexp.charAt(i) == ']') {
+                    i++;
+                }
+                while(i < len && regexp.charAt(i) != ']') {
+                    if(regexp.charAt(i) == '\\') {
+                        i++;
+                    }
+                    i++;
+                }
+                lastGroupQuantified = false;
+            } else if(c == '(') {
+                groups.add(false);
+                lastGroupQuantified = false;
+            } else if(c == ')') {
+                lastGroupQuantified = !groups.isEmpty() && groups.remove(groups.size() - 1);
+            } else if(c == '*' || c == '+' || (c == '{' && isUnboundedRepetition(regexp, i))) {
+                if(lastGroupQuantified) {
+                    return true;
+                }
+                if(!groups.isEmpty()) {
+                    groups.set(groups.size() - 1, true);
+                }
+            } else {
+                lastGroupQuantified = false;
+            }
+            if(c == ')' && lastGroupQuantified && !groups.isEmpty()) {
+                // inner quantifiers also count for the enclosing group
+                groups.set(groups.size() - 1, true);
+            }
+        }
+        return false;
+    }
+
+    /** @return true if the {...} repetition that starts at index allows for
+     *  more than a few repetitions, like {2,} or {1,100}
+     */
+    private static boolean isUnboundedRepetition(String regexp, int index) {
+        final int end = regexp.indexOf('}', index);
+        if(end < 0) {
+            return false;
+        }
+        final String spec = regexp.substring(index + 1, end);
+        final int comma = spec.indexOf(',');
+        if(comma < 0) {
+            return false;
+        }
+        final String max = spec.substring(comma + 1).trim();
+        try {
+            return max.isEmpty() || Integer.parseInt(max) > 10;
+        } catch(NumberFormatException nfe) {
+            return false;
+        }
+    }
+
+    /** CharSequence which limits the number of characters that
+     *  regexp matching can read, as a last resort against
+     *  catastrophic backtracking.
+     */
+    private static class BoundedCharSequence implements CharSequence {
+        static class LimitExceededException extends RuntimeException {
+            private static final long serialVersionUID = 1L;
+
+            LimitExceededException() {
+                super(null, null, false, false);
+            }
+        }
+
+        private final String str;
+        private final int[] budget;
+
+        BoundedCharSequence(String str) {
+            this(str, new int[] { (str.length() + 1) * MAX_READS_PER_CHAR });
+        }
+
+        private BoundedCharSequence(String str, int [] budget) {
+            this.str = str;
+            this.budget = budget;
+        }
+
+        @Override
+        public int length() {
+            return str.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if(--budget[0] < 0) {
+                throw new LimitExceededException();
+            }
+            return str.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new BoundedCharSequence(str.substring(start, end), budget);
+        }
+
+        @Override
+        public String toString() {
+            return str;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import org.apache.sling.api.resource.ResourceResolver;
+
+/** What the JSONCapabilitiesWriter and SourceValues use to serve a single
+ *  request. The setters return this object, and features that are not
+ *  set are disabled.
+ */
+class RequestContext {
+
+    private final ResourceResolver resolver;
+    private ServerTiming timing = ServerTiming.DISABLED;
+    private CircuitBreakers circuitBreakers = CircuitBreakers.DISABLED;
+    private CacheHeaders cacheHeaders;
+    private LatencyBudget budget = LatencyBudget.NONE;
+    private AccessChecker accessChecker = AccessChecker.UNCACHED;
+
+    /** @param resolver the request's ResourceResolver, passed to the CapabilitiesSources */
+    RequestContext(ResourceResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    /** @param timing records the time spent computing the output */
+    RequestContext timing(ServerTiming timing) {
+        this.timing = timing;
+        return this;
+    }
+
+    /** @param circuitBreakers used to call the CapabilitiesSources */
+    RequestContext circuitBreakers(CircuitBreakers circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+        return this;
+    }
+
+    /** @param cacheHeaders records what's included in the output */
+    RequestContext cacheHeaders(CacheHeaders cacheHeaders) {
+        this.cacheHeaders = cacheHeaders;
+        return this;
+    }
+
+    /** @param budget limits the time spent invoking the CapabilitiesSources */
+    RequestContext budget(LatencyBudget budget) {
+        this.budget = budget;
+        return this;
+    }
+
+    /** @param accessChecker checks the access requirements of the CapabilitiesSources */
+    RequestContext accessChecker(AccessChecker accessChecker) {
+        this.accessChecker = accessChecker;
+        return this;
+    }
+
+    ResourceResolver getResolver() {
+        return resolver;
+    }
+
+    ServerTiming getTiming() {
+        return timing;
+    }
+
+    CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    CacheHeaders getCacheHeaders() {
+        if(cacheHeaders == null) {
+            cacheHeaders = new CacheHeaders();
+        }
+        return cacheHeaders;
+    }
+
+    LatencyBudget getBudget() {
+        return budget;
+    }
+
+    AccessChecker getAccessChecker() {
+        return accessChecker;
+    }
+}
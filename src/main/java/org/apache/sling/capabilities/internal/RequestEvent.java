@@ -0,0 +1,57 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event for a request to a capabilities endpoint. Only used
+ *  through {@link JfrEvents}, as the jdk.jfr package is optional.
+ */
+@Name(RequestEvent.NAME)
+@Label("Capabilities Request")
+@Category({ "Apache Sling", "Capabilities" })
+@Description("Request to a sling/capabilities endpoint")
+class RequestEvent extends Event {
+
+    static final String NAME = "org.apache.sling.capabilities.Request";
+
+    @Label("Path")
+    String path;
+
+    @Label("Batch")
+    @Description("True for batch requests, which output several endpoints")
+    boolean batch;
+
+    @Label("Namespace Patterns")
+    @Description("Number of namespace patterns of the endpoints")
+    int patternCount;
+
+    @Label("Namespaces")
+    @Description("Number of namespaces written")
+    int namespaces;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long bytesWritten;
+}
@@ -0,0 +1,107 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/** Collects the time spent in the various phases of a capabilities
+ *  request, for the Server-Timing response header.
+ *  The DISABLED instance does nothing, not even reading the clock.
+ */
+class ServerTiming {
+
+    static final String HEADER = "Server-Timing";
+    static final String FILTER = "filter";
+    static final String SERIALIZE = "serialize";
+    static final String PEERS = "peers";
+    static final String TOTAL = "total";
+
+    static final ServerTiming DISABLED = new ServerTiming() {
+        @Override
+        long start() {
+            return 0;
+        }
+
+        @Override
+        void add(String name, long startNanos) {
+        }
+
+        @Override
+        void addNamespace(String namespace, long startNanos) {
+        }
+    };
+
+    /** Metric names and descriptions to accumulated nanoseconds, in order of creation */
+    private final Map<String, Long> nanos = new LinkedHashMap<>();
+    private final Map<String, String> descriptions = new LinkedHashMap<>();
+
+    boolean isEnabled() {
+        return this != DISABLED;
+    }
+
+    /** @return the start time to pass to the add methods */
+    long start() {
+        return System.nanoTime();
+    }
+
+    /** Add the time elapsed since startNanos to the named metric */
+    void add(String name, long startNanos) {
+        nanos.merge(name, System.nanoTime() - startNanos, Long::sum);
+    }
+
+    /** Add the time elapsed since startNanos to the metric of the given namespace */
+    void addNamespace(String namespace, long startNanos) {
+        final String name = "ns-" + toToken(namespace);
+        descriptions.put(name, namespace);
+        add(name, startNanos);
+    }
+
+    /** Server-Timing metric names are tokens, replace any other characters */
+    static String toToken(String str) {
+        final StringBuilder sb = new StringBuilder(str.length());
+        for(int i=0; i < str.length(); i++) {
+            final char c = str.charAt(i);
+            if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || "!#$%&'*+-.^_`|~".indexOf(c) >= 0) {
+                sb.append(c);
+            } else {
+                sb.append('_');
+            }
+        }
+        return sb.toString();
+    }
+
+    /** @return the Server-Timing header value, durations in milliseconds */
+    String toHeaderValue() {
+        final StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Long> e : nanos.entrySet()) {
+            if(sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(e.getKey());
+            final String desc = descriptions.get(e.getKey());
+            if(desc != null) {
+                sb.append(";desc=\"").append(desc.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"");
+            }
+            sb.append(";dur=").append(String.format(Locale.ROOT, "%.3f", e.getValue() / 1e6));
+        }
+        return sb.toString();
+    }
+}
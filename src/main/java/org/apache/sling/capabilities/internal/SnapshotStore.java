@@ -0,0 +1,208 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.function.Supplier;
+
+/** Creates compact, immutable snapshots of capabilities values.
+ *
+ *  The keys of each snapshot are sorted, and its strings, nested
+ *  values and the snapshots themselves are interned, so that equal
+ *  values share a single instance across cache entries. Snapshots of
+ *  several namespaces share the snapshots of the namespaces that did
+ *  not change. The interning pool only holds weak references, so it
+ *  does not prevent unused values from being garbage collected.
+ *
+ *  Supplier values that have not been computed are left out of snapshots,
+ *  as computing them could be expensive and a snapshot is immutable.
+ *
+ *  The estimated heap size of each snapshot is computed when it's
+ *  created, assuming a 64-bit JVM with compressed references. Shared
+ *  objects are counted in each snapshot that references them, so that
+ *  estimate is an upper bound.
+ */
+class SnapshotStore {
+
+    static final int OBJECT_HEADER_BYTES = 16;
+    static final int ARRAY_HEADER_BYTES = 16;
+    static final int REFERENCE_BYTES = 4;
+
+    private final Map<Object, WeakReference<Object>> pool = new WeakHashMap<>();
+
+    /** @return a compact, immutable copy of values, or values itself if
+     *  it's already compact. Supplier values are left out.
+     */
+    CompactValues compact(Map<?, ?> values) {
+        if(values instanceof CompactValues) {
+            return (CompactValues)values;
+        }
+        final Map<String, Object> sorted = new TreeMap<>();
+        for(Map.Entry<?, ?> e : values.entrySet()) {
+            if(!(e.getValue() instanceof Supplier)) {
+                sorted.put(intern(String.valueOf(e.getKey())), compactValue(e.getValue()));
+            }
+        }
+        final String [] keys = sorted.keySet().toArray(new String[0]);
+        final Object [] vals = sorted.values().toArray();
+        long bytes = align(OBJECT_HEADER_BYTES + 3 * REFERENCE_BYTES + 8) + arrayBytes(keys.length) + arrayBytes(vals.length);
+        for(int i=0; i < keys.length; i++) {
+            bytes += estimateBytes(keys[i]) + estimateBytes(vals[i]);
+        }
+        return intern(new CompactValues(keys, vals, bytes));
+    }
+
+    private Object compactValue(Object value) {
+        if(value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character) {
+            return intern(value);
+        } else if(value instanceof Map) {
+            return compact((Map<?, ?>)value);
+        } else if(value instanceof Collection) {
+            final List<Object> list = new ArrayList<>(((Collection<?>)value).size());
+            for(Object o : (Collection<?>)value) {
+                list.add(compactValue(o));
+            }
+            return intern(Collections.unmodifiableList(Arrays.asList(list.toArray())));
+        } else if(value != null && value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            final Object [] items = new Object[length];
+            for(int i=0; i < length; i++) {
+                items[i] = compactValue(Array.get(value, i));
+            }
+            return intern(Collections.unmodifiableList(Arrays.asList(items)));
+        }
+        // null or other objects that we cannot copy
+        return value;
+    }
+
+    /** @return true if compacting values would create a snapshot equal to
+     *  the supplied one. Cheaper than compacting, as it does not copy or
+     *  intern anything.
+     */
+    static boolean isSnapshotOf(CompactValues snapshot, Map<?, ?> values) {
+        if(values instanceof CompactValues) {
+            return snapshot.equals(values);
+        }
+        int count = 0;
+        for(Map.Entry<?, ?> e : values.entrySet()) {
+            if(e.getValue() instanceof Supplier) {
+                continue;
+            }
+            final String key = String.valueOf(e.getKey());
+            if(!snapshot.containsKey(key) || !isCompacted(snapshot.get(key), e.getValue())) {
+                return false;
+            }
+            count++;
+        }
+        return count == snapshot.size();
+    }
+
+    /** Mirrors compactValue, which converts Collections and arrays to Lists */
+    private static boolean isCompacted(Object compacted, Object value) {
+        if(value instanceof Map) {
+            return compacted instanceof CompactValues && isSnapshotOf((CompactValues)compacted, (Map<?, ?>)value);
+        } else if(value instanceof Collection) {
+            if(!(compacted instanceof List) || ((List<?>)compacted).size() != ((Collection<?>)value).size()) {
+                return false;
+            }
+            final Iterator<?> it = ((List<?>)compacted).iterator();
+            for(Object o : (Collection<?>)value) {
+                if(!isCompacted(it.next(), o)) {
+                    return false;
+                }
+            }
+            return true;
+        } else if(value != null && value.getClass().isArray()) {
+            final int length = Array.getLength(value);
+            if(!(compacted instanceof List) || ((List<?>)compacted).size() != length) {
+                return false;
+            }
+            for(int i=0; i < length; i++) {
+                if(!isCompacted(((List<?>)compacted).get(i), Array.get(value, i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return Objects.equals(compacted, value);
+    }
+
+    /** @return the pooled instance that equals o, after pooling o if there's none */
+    @SuppressWarnings("unchecked")
+    <T> T intern(T o) {
+        synchronized (pool) {
+            final WeakReference<Object> ref = pool.get(o);
+            final Object existing = ref == null ? null : ref.get();
+            if(existing != null) {
+                return (T)existing;
+            }
+            pool.put(o, new WeakReference<Object>(o));
+            return o;
+        }
+    }
+
+    /** @return the number of pooled objects, for testing */
+    int getPoolSize() {
+        synchronized (pool) {
+            return pool.size();
+        }
+    }
+
+    /** @return the estimated heap size of a compacted value */
+    static long estimateBytes(Object value) {
+        if(value == null) {
+            return 0;
+        } else if(value instanceof CompactValues) {
+            return ((CompactValues)value).getEstimatedBytes();
+        } else if(value instanceof String) {
+            // Counting two bytes per char, as with non-Latin1 strings
+            return align(OBJECT_HEADER_BYTES + REFERENCE_BYTES + 8) + align(ARRAY_HEADER_BYTES + 2L * ((String)value).length());
+        } else if(value instanceof Long || value instanceof Double) {
+            return align(OBJECT_HEADER_BYTES + 8);
+        } else if(value instanceof List) {
+            // Unmodifiable wrapper around an Arrays.asList
+            final List<?> list = (List<?>)value;
+            long bytes = 2 * align(OBJECT_HEADER_BYTES + 2 * REFERENCE_BYTES) + arrayBytes(list.size());
+            for(Object o : list) {
+                bytes += estimateBytes(o);
+            }
+            return bytes;
+        }
+        return align(OBJECT_HEADER_BYTES + 8);
+    }
+
+    private static long arrayBytes(int length) {
+        return align(ARRAY_HEADER_BYTES + (long)REFERENCE_BYTES * length);
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+}
@@ -0,0 +1,49 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** JFR event for an invocation of a CapabilitiesSource. Only used
+ *  through {@link JfrEvents}, as the jdk.jfr package is optional.
+ */
+@Name(SourceInvocationEvent.NAME)
+@Label("Capabilities Source Invocation")
+@Category({ "Apache Sling", "Capabilities" })
+@Description("Invocation of a CapabilitiesSource service")
+class SourceInvocationEvent extends Event {
+
+    static final String NAME = "org.apache.sling.capabilities.SourceInvocation";
+
+    @Label("Namespace")
+    String namespace;
+
+    @Label("Outcome")
+    @Description("ok, error if the source failed or its circuit breaker provided an error, or omitted if the latency budget ran out, "
+        + "or rejected if no latency budget thread was available")
+    String outcome;
+
+    @Label("Entries")
+    @Description("Number of capabilities provided")
+    int entries;
+}
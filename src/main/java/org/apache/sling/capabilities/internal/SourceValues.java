@@ -0,0 +1,177 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+
+/** Invokes CapabilitiesSource services for a single request, at most
+ *  once per source even if several endpoints use it.
+ *
+ *  The Supplier values that sources can provide are computed as part of
+ *  the source invocation, so that the latency budget and circuit breakers
+ *  also apply to them, but only for the keys that are actually output.
+ */
+class SourceValues {
+
+    static final String EXCEPTION_KEY = "_EXCEPTION_";
+
+    private final ResourceResolver resolver;
+    private final ServerTiming timing;
+    private final CircuitBreakers circuitBreakers;
+    private final LatencyBudget budget;
+    private final AccessChecker accessChecker;
+    private final Map<CapabilitiesSource, Map<String, Object>> values = new IdentityHashMap<>();
+    private Map<CapabilitiesSource, Boolean> accessible;
+
+    /** Marks the sources that were omitted as the budget ran out */
+    private static final Map<String, Object> OMITTED = Collections.unmodifiableMap(new HashMap<String, Object>());
+
+    SourceValues(RequestContext context) {
+        this.resolver = context.getResolver();
+        this.accessChecker = context.getAccessChecker();
+        this.timing = context.getTiming();
+        this.circuitBreakers = context.getCircuitBreakers();
+        this.budget = context.getBudget();
+    }
+
+    /** @return true if the current user meets the access requirements
+     *  that the supplied source declares, if any. Does not call the source.
+     */
+    boolean isAccessible(CapabilitiesSource source) {
+        if(!(source instanceof ReferencedSource)) {
+            return true;
+        }
+        final AccessRequirements req = ((ReferencedSource)source).getAccessRequirements();
+        if(req.isEmpty()) {
+            return true;
+        }
+        if(accessible == null) {
+            accessible = new IdentityHashMap<>();
+        }
+        return accessible.computeIfAbsent(source, s -> accessChecker.isAllowed(req, resolver));
+    }
+
+    /** @return the capabilities of the supplied source, or a Map
+     *  that describes the exception that it threw, possibly
+     *  provided by its circuit breaker. Null if the source was
+     *  omitted as the latency budget ran out.
+     *  @param keyFilter optional, with requestedKeys selects the
+     *      keys whose Supplier values are computed
+     *  @param requestedKeys optional
+     */
+    Map<String, Object> get(CapabilitiesSource source, RegexFilter keyFilter, Set<String> requestedKeys) {
+        Map<String, Object> result = values.get(source);
+        if(result == null) {
+            result = invoke(new ResolvingSource(source, null, keyFilter, requestedKeys));
+            values.put(source, result == null ? OMITTED : result);
+        } else if(result != OMITTED && hasSuppliers(result, keyFilter, requestedKeys)) {
+            // Another endpoint selected different keys of this source. What this
+            // returns is kept even if it failed, so that calling this again for
+            // the same selection, as when writing after preparing, does not
+            // invoke the source again.
+            result = invoke(new ResolvingSource(source, result, keyFilter, requestedKeys));
+            values.put(source, result == null ? OMITTED : result);
+        }
+        if(result == OMITTED) {
+            return null;
+        }
+        return result;
+    }
+
+    private Map<String, Object> invoke(ResolvingSource source) {
+        final long start = timing.start();
+        final Object jfr = JfrEvents.beginSourceInvocation();
+        final int rejections = budget.getRejections();
+        final Map<String, Object> result = budget.invoke(resolver, r -> circuitBreakers.invoke(source, r));
+        timing.addNamespace(source.getNamespace(), start);
+        if(jfr != null) {
+            final boolean failed = result != null && result.containsKey(EXCEPTION_KEY);
+            final String omitted = budget.getRejections() > rejections ? JfrEvents.OUTCOME_REJECTED : JfrEvents.OUTCOME_OMITTED;
+            final String outcome = result == null ? omitted : failed ? JfrEvents.OUTCOME_ERROR : JfrEvents.OUTCOME_OK;
+            JfrEvents.endSourceInvocation(jfr, source.getNamespace(), outcome, result == null || failed ? 0 : result.size());
+        }
+        return result;
+    }
+
+    private static boolean isSelected(String key, RegexFilter keyFilter, Set<String> requestedKeys) {
+        return (requestedKeys == null || requestedKeys.contains(key)) && (keyFilter == null || keyFilter.accept(key));
+    }
+
+    private static boolean hasSuppliers(Map<String, Object> values, RegexFilter keyFilter, Set<String> requestedKeys) {
+        for(Map.Entry<String, Object> e : values.entrySet()) {
+            if(e.getValue() instanceof Supplier && isSelected(e.getKey(), keyFilter, requestedKeys)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** @return values with the selected Supplier values replaced by what they
+     *  supply, or values itself if there are none. Other Suppliers are kept.
+     */
+    static Map<String, Object> resolveSuppliers(Map<String, Object> values, RegexFilter keyFilter, Set<String> requestedKeys) {
+        Map<String, Object> resolved = null;
+        for(Map.Entry<String, Object> e : values.entrySet()) {
+            if(e.getValue() instanceof Supplier && isSelected(e.getKey(), keyFilter, requestedKeys)) {
+                if(resolved == null) {
+                    resolved = new LinkedHashMap<>(values);
+                }
+                resolved.put(e.getKey(), ((Supplier<?>)e.getValue()).get());
+            }
+        }
+        return resolved == null ? values : resolved;
+    }
+
+    /** Calls a source, or reuses its previous values, and computes the
+     *  selected Supplier values, as a single invocation for the latency
+     *  budget and circuit breakers.
+     */
+    private static class ResolvingSource implements CapabilitiesSource {
+        private final CapabilitiesSource source;
+        private final Map<String, Object> previous;
+        private final RegexFilter keyFilter;
+        private final Set<String> requestedKeys;
+
+        ResolvingSource(CapabilitiesSource source, Map<String, Object> previous, RegexFilter keyFilter, Set<String> requestedKeys) {
+            this.source = source;
+            this.previous = previous;
+            this.keyFilter = keyFilter;
+            this.requestedKeys = requestedKeys;
+        }
+
+        @Override
+        public String getNamespace() {
+            return source.getNamespace();
+        }
+
+        @Override
+        public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+            final Map<String, Object> result = previous != null ? previous : source.getCapabilities(resolver);
+            return result == null ? null : resolveSuppliers(result, keyFilter, requestedKeys);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AccessCheckerTest {
+
+    private static final long TTL_SECONDS = 60;
+    private final AtomicLong clock = new AtomicLong();
+    private AccessChecker checker;
+
+    private static ResourceResolver resolver(String userId, String ... readablePaths) {
+        final ResourceResolver r = Mockito.mock(ResourceResolver.class);
+        Mockito.when(r.getUserID()).thenReturn(userId);
+        for(String path : readablePaths) {
+            Mockito.when(r.getResource(path)).thenReturn(Mockito.mock(Resource.class));
+        }
+        return r;
+    }
+
+    @Before
+    public void setup() {
+        checker = new AccessChecker(TTL_SECONDS, 100, clock::get);
+    }
+
+    @Test
+    public void testNoRequirements() {
+        final ResourceResolver r = resolver("bob");
+        assertTrue(checker.isAllowed(AccessRequirements.NONE, r));
+        assertTrue(checker.isAllowed(new AccessRequirements(new String[0], ""), null));
+        Mockito.verifyNoMoreInteractions(r);
+    }
+
+    @Test
+    public void testRequiredUser() {
+        final AccessRequirements req = new AccessRequirements(null, new String[] { "admin", "alice" });
+        assertTrue(checker.isAllowed(req, resolver("alice")));
+        assertFalse(checker.isAllowed(req, resolver("bob")));
+        assertFalse(checker.isAllowed(req, resolver(null)));
+        assertFalse(checker.isAllowed(req, null));
+    }
+
+    @Test
+    public void testRequiredPathsAreCachedPerUser() {
+        final AccessRequirements req = new AccessRequirements(new String[] { "/a", "/b" }, null);
+        final ResourceResolver alice = resolver("alice", "/a", "/b");
+        final ResourceResolver bob = resolver("bob", "/a");
+        for(int i=0; i < 3; i++) {
+            assertTrue(checker.isAllowed(req, alice));
+            assertFalse(checker.isAllowed(req, bob));
+        }
+        Mockito.verify(alice, Mockito.times(1)).getResource("/a");
+        Mockito.verify(alice, Mockito.times(1)).getResource("/b");
+        Mockito.verify(bob, Mockito.times(1)).getResource("/a");
+        assertEquals(4, checker.size());
+
+        // Another resolver of the same user uses the cached results
+        final ResourceResolver alice2 = resolver("alice");
+        assertTrue(checker.isAllowed(req, alice2));
+        Mockito.verify(alice2, Mockito.never()).getResource(Mockito.anyString());
+    }
+
+    @Test
+    public void testExpiry() {
+        final AccessRequirements req = new AccessRequirements("/a", null);
+        final ResourceResolver r = resolver("alice", "/a");
+        assertTrue(checker.isAllowed(req, r));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(TTL_SECONDS) - 1);
+        assertTrue(checker.isAllowed(req, r));
+        Mockito.verify(r, Mockito.times(1)).getResource("/a");
+        clock.addAndGet(2);
+        assertTrue(checker.isAllowed(req, r));
+        Mockito.verify(r, Mockito.times(2)).getResource("/a");
+    }
+
+    @Test
+    public void testInvalidation() {
+        final AccessRequirements req = new AccessRequirements(new String[] { "/content/a/b", "/content/c" }, null);
+        final ResourceResolver r = resolver("alice", "/content/a/b", "/content/c");
+        assertTrue(checker.isAllowed(req, r));
+        assertEquals(2, checker.size());
+
+        checker.invalidate("/content/other");
+        checker.invalidate("/content/a/bb");
+        assertEquals(2, checker.size());
+
+        checker.invalidate("/content/a/rep:policy/allow0");
+        assertEquals(1, checker.size());
+        checker.invalidate("/content");
+        assertEquals(0, checker.size());
+    }
+
+    @Test
+    public void testMaxEntries() {
+        final AccessRequirements req = new AccessRequirements("/a", null);
+        for(int i=0; i < 100; i++) {
+            checker.isAllowed(req, resolver("user" + i, "/a"));
+        }
+        assertEquals(100, checker.size());
+        checker.isAllowed(req, resolver("one-more", "/a"));
+        assertEquals(0, checker.size());
+    }
+
+    @Test
+    public void testUncached() {
+        final AccessRequirements req = new AccessRequirements("/a", null);
+        final ResourceResolver r = resolver("alice", "/a");
+        assertTrue(AccessChecker.UNCACHED.isAllowed(req, r));
+        assertTrue(AccessChecker.UNCACHED.isAllowed(req, r));
+        Mockito.verify(r, Mockito.times(2)).getResource("/a");
+        assertEquals(0, AccessChecker.UNCACHED.size());
+    }
+}
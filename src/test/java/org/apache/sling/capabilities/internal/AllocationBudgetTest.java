@@ -0,0 +1,188 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import org.apache.sling.servlethelpers.MockSlingHttpServletRequest;
+import org.apache.sling.servlethelpers.MockSlingHttpServletResponse;
+import org.apache.sling.testing.mock.osgi.MockOsgi;
+import org.apache.sling.testing.mock.osgi.junit.OsgiContext;
+import org.apache.sling.testing.mock.sling.MockSling;
+import org.apache.sling.testing.resourceresolver.MockResource;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/** Guards the allocation behavior of the request path, by running
+ *  requests in a steady-state loop and measuring the bytes allocated
+ *  per request with the thread allocation counters of the JVM.
+ *
+ *  The budgets can be overridden, in bytes, with the system properties
+ *  defined below, like -Dcapabilities.allocation.writeJson.budgetBytes=8192
+ */
+public class AllocationBudgetTest {
+
+    static final String WRITER_BUDGET_PROP = "capabilities.allocation.writeJson.budgetBytes";
+    static final String SERVLET_BUDGET_PROP = "capabilities.allocation.doGet.budgetBytes";
+    static final long DEFAULT_WRITER_BUDGET = 3 * 1024;
+    static final long DEFAULT_SERVLET_BUDGET = 28 * 1024;
+
+    private static final int WARMUP_REQUESTS = 5000;
+    private static final int MEASURED_REQUESTS = 2000;
+    private static final int SOURCES = 5;
+    private static final int KEYS = 5;
+
+    @Rule
+    public final OsgiContext context = new OsgiContext();
+
+    private interface Request {
+        void run() throws Exception;
+    }
+
+    /** Source which returns precomputed capabilities, so that only our allocations are measured */
+    private static class FixedSource implements CapabilitiesSource {
+        private final String namespace;
+        private final Map<String, Object> values;
+
+        FixedSource(String namespace) {
+            this.namespace = namespace;
+            final Map<String, Object> m = new TreeMap<>();
+            for(int i=0; i < KEYS; i++) {
+                m.put("key_" + i, "value_" + i + "_" + namespace);
+            }
+            values = Collections.unmodifiableMap(m);
+        }
+
+        @Override
+        public String getNamespace() {
+            return namespace;
+        }
+
+        @Override
+        public Map<String, Object> getCapabilities(ResourceResolver resolver) {
+            return values;
+        }
+    }
+
+    private static List<CapabilitiesSource> sources() {
+        final List<CapabilitiesSource> result = new ArrayList<>();
+        for(int i=0; i < SOURCES; i++) {
+            result.add(new FixedSource("ns" + i));
+        }
+        return result;
+    }
+
+    private static long getBudget(String property, long defaultValue) {
+        return Long.getLong(property, defaultValue);
+    }
+
+    /** @return the average number of bytes allocated by the current thread per request */
+    private static long allocatedBytesPerRequest(Request r) throws Exception {
+        final java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("Thread allocation counters not available", mx instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean tmx = (com.sun.management.ThreadMXBean)mx;
+        Assume.assumeTrue("Thread allocation counters not supported", tmx.isThreadAllocatedMemorySupported());
+        tmx.setThreadAllocatedMemoryEnabled(true);
+
+        for(int i=0; i < WARMUP_REQUESTS; i++) {
+            r.run();
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long before = tmx.getThreadAllocatedBytes(threadId);
+        for(int i=0; i < MEASURED_REQUESTS; i++) {
+            r.run();
+        }
+        return (tmx.getThreadAllocatedBytes(threadId) - before) / MEASURED_REQUESTS;
+    }
+
+    private static void assertWithinBudget(String what, long perRequest, String property, long defaultValue) {
+        final long budget = getBudget(property, defaultValue);
+        assertTrue(what + " allocates " + perRequest + " bytes per request, budget is " + budget
+            + " (" + property + ")", perRequest <= budget);
+    }
+
+    /** Discards its output, without allocating */
+    private static class NullWriter extends Writer {
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void testWriteJson() throws Exception {
+        final EndpointDefinition endpoint = JSONCapabilitiesWriterTest.endpoint("/caps", new String[] { "ns.*" }, null, sources());
+        assertEquals(SOURCES, endpoint.getSources().size());
+        final Writer w = new NullWriter();
+        final long perRequest = allocatedBytesPerRequest(() -> new JSONCapabilitiesWriter(new RequestContext(null))
+            .writeJson(w, endpoint, Projection.ALL, null));
+        assertWithinBudget("JSONCapabilitiesWriter.writeJson", perRequest, WRITER_BUDGET_PROP, DEFAULT_WRITER_BUDGET);
+    }
+
+    @Test
+    public void testDoGet() throws Exception {
+        for(CapabilitiesSource s : sources()) {
+            final Dictionary<String, Object> props = new Hashtable<>();
+            props.put(CapabilitiesSource.NAMESPACE_PROPERTY, s.getNamespace());
+            context.bundleContext().registerService(CapabilitiesSource.class, s, props);
+        }
+        final CapabilitiesServlet servlet = new CapabilitiesServlet();
+        context.registerInjectActivateService(servlet);
+
+        final ResourceResolver resolver = MockSling.newResourceResolver(MockOsgi.newBundleContext());
+        final Map<String, Object> props = new HashMap<>();
+        props.put(CapabilitiesServlet.NAMESPACES_PROP, new String[] { "ns.*" });
+        final MockSlingHttpServletRequest req = new MockSlingHttpServletRequest(resolver);
+        req.setResource(new MockResource("/caps", props, resolver));
+
+        final long perRequest = allocatedBytesPerRequest(() -> {
+            final MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+            servlet.service(req, resp);
+            if(resp.getStatus() != 200) {
+                throw new IOException("Unexpected status " + resp.getStatus());
+            }
+        });
+        assertWithinBudget("CapabilitiesServlet.doGet", perRequest, SERVLET_BUDGET_PROP, DEFAULT_SERVLET_BUDGET);
+    }
+}
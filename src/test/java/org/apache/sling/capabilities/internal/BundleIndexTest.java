@@ -0,0 +1,179 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleRevision;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BundleIndexTest {
+
+    private static long nextId = 1;
+
+    private static BundleCapability capability(String namespace, Object ... keyValues) {
+        final Map<String, Object> attributes = new HashMap<>();
+        for(int i=0; i < keyValues.length; i += 2) {
+            attributes.put((String)keyValues[i], keyValues[i + 1]);
+        }
+        final BundleCapability cap = Mockito.mock(BundleCapability.class);
+        Mockito.when(cap.getNamespace()).thenReturn(namespace);
+        Mockito.when(cap.getAttributes()).thenReturn(attributes);
+        return cap;
+    }
+
+    private static Bundle bundle(String symbolicName, String version, BundleCapability ... caps) {
+        final BundleRevision revision = Mockito.mock(BundleRevision.class);
+        final List<BundleCapability> list = new ArrayList<>(Arrays.asList(caps));
+        Mockito.when(revision.getDeclaredCapabilities(null)).thenReturn(list);
+        final Bundle b = Mockito.mock(Bundle.class);
+        Mockito.when(b.getBundleId()).thenReturn(nextId++);
+        Mockito.when(b.getSymbolicName()).thenReturn(symbolicName);
+        Mockito.when(b.getVersion()).thenReturn(new Version(version));
+        Mockito.when(b.adapt(BundleRevision.class)).thenReturn(revision);
+        return b;
+    }
+
+    private static BundleCapability exportedPackage(String name, String version) {
+        return capability(BundleIndex.PACKAGE_NAMESPACE, BundleIndex.PACKAGE_NAMESPACE, name, BundleIndex.VERSION_ATTRIBUTE, new Version(version));
+    }
+
+    private static BundleIndex allBundlesIndex() {
+        return new BundleIndex(new RegexFilter(".*"), new RegexFilter(".*"), null);
+    }
+
+    @Test
+    public void testBundlesAndPackages() {
+        final BundleIndex index = allBundlesIndex();
+        index.addingBundle(bundle("org.example.a", "1.2.3", exportedPackage("org.example.a.api", "2.0.0")), null);
+        index.addingBundle(bundle("org.example.b", "4.5.6",
+            exportedPackage("org.example.b.api", "1.0.0"),
+            capability("osgi.identity", "osgi.identity", "org.example.b")), null);
+
+        final Map<String, Object> snapshot = index.getSnapshot();
+        assertEquals("1.2.3", snapshot.get("bundle.org.example.a"));
+        assertEquals("4.5.6", snapshot.get("bundle.org.example.b"));
+        assertEquals("2.0.0", snapshot.get("package.org.example.a.api"));
+        assertEquals("1.0.0", snapshot.get("package.org.example.b.api"));
+        assertEquals("Expecting identity capabilities to be ignored", 4, snapshot.size());
+    }
+
+    @Test
+    public void testProvidedCapabilities() {
+        final BundleIndex index = allBundlesIndex();
+        index.addingBundle(bundle("org.example.c", "1.0.0",
+            capability("osgi.extender", "osgi.extender", "osgi.component", BundleIndex.VERSION_ATTRIBUTE, new Version("1.4.0")),
+            capability("org.example.feature")), null);
+
+        final Map<String, Object> snapshot = index.getSnapshot();
+        assertEquals("1.4.0", snapshot.get("capability.osgi.extender.osgi.component"));
+        assertEquals("0.0.0", snapshot.get("capability.org.example.feature"));
+    }
+
+    @Test
+    public void testSeveralVersions() {
+        final BundleIndex index = allBundlesIndex();
+        index.addingBundle(bundle("org.example.a", "1.0.0", exportedPackage("org.example.api", "1.0.0")), null);
+        index.addingBundle(bundle("org.example.a", "2.0.0", exportedPackage("org.example.api", "2.0.0")), null);
+        index.addingBundle(bundle("org.example.b", "1.0.0", exportedPackage("org.example.api", "2.0.0")), null);
+
+        final Map<String, Object> snapshot = index.getSnapshot();
+        assertEquals("1.0.0,2.0.0", snapshot.get("bundle.org.example.a"));
+        assertEquals("1.0.0,2.0.0", snapshot.get("package.org.example.api"));
+    }
+
+    @Test
+    public void testBundleFilter() {
+        final BundleIndex index = new BundleIndex(new RegexFilter("org\\.apache\\..*"), new RegexFilter(".*"), null);
+        final Bundle other = bundle("org.example.a", "1.0.0");
+        assertNull("Expecting other bundles to not be tracked", index.addingBundle(other, null));
+        final Bundle sling = bundle("org.apache.sling.api", "2.11.0");
+        assertSame(sling, index.addingBundle(sling, null));
+
+        final Map<String, Object> snapshot = index.getSnapshot();
+        assertEquals(1, snapshot.size());
+        assertTrue(snapshot.containsKey("bundle.org.apache.sling.api"));
+    }
+
+    @Test
+    public void testCapabilityFilters() throws InvalidSyntaxException {
+        final BundleIndex index = new BundleIndex(
+            new RegexFilter(".*"),
+            new RegexFilter(BundleIndex.PACKAGE_NAMESPACE.replace(".", "\\.")),
+            FrameworkUtil.createFilter("(version>=2.0.0)"));
+        index.addingBundle(bundle("org.example.a", "1.0.0",
+            exportedPackage("org.example.old", "1.0.0"),
+            exportedPackage("org.example.api", "2.0.0"),
+            capability("osgi.extender", "osgi.extender", "osgi.component", BundleIndex.VERSION_ATTRIBUTE, new Version("2.0.0"))), null);
+
+        final Map<String, Object> snapshot = index.getSnapshot();
+        assertEquals("2.0.0", snapshot.get("package.org.example.api"));
+        assertFalse(snapshot.containsKey("package.org.example.old"));
+        assertFalse(snapshot.containsKey("capability.osgi.extender.osgi.component"));
+    }
+
+    @Test
+    public void testSnapshotOnlyRebuiltAfterChanges() {
+        final BundleIndex index = allBundlesIndex();
+        final Bundle a = bundle("org.example.a", "1.0.0");
+        index.addingBundle(a, null);
+        final Map<String, Object> first = index.getSnapshot();
+        assertSame("Expecting the same snapshot without changes", first, index.getSnapshot());
+
+        final Bundle b = bundle("org.example.b", "1.0.0");
+        index.addingBundle(b, null);
+        final Map<String, Object> second = index.getSnapshot();
+        assertNotSame(first, second);
+        assertEquals(2, second.size());
+
+        index.removedBundle(a, null, a);
+        final Map<String, Object> third = index.getSnapshot();
+        assertEquals(1, third.size());
+        assertTrue(third.containsKey("bundle.org.example.b"));
+        assertEquals("Expecting previous snapshots to be unchanged", 2, second.size());
+    }
+
+    @Test
+    public void testModifiedBundle() {
+        final BundleIndex index = allBundlesIndex();
+        final Bundle a = bundle("org.example.a", "1.0.0");
+        index.addingBundle(a, null);
+        assertFalse(index.getSnapshot().containsKey("package.org.example.api"));
+
+        final BundleRevision revision = a.adapt(BundleRevision.class);
+        revision.getDeclaredCapabilities(null).add(exportedPackage("org.example.api", "1.1.0"));
+        index.modifiedBundle(a, null, a);
+        assertEquals("1.1.0", index.getSnapshot().get("package.org.example.api"));
+    }
+}
@@ -0,0 +1,68 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ByteBoundedCacheTest {
+
+    private final ByteBoundedCache<String, String> cache = new ByteBoundedCache<>(100, (k, v) -> v.length());
+
+    private static String ofLength(int n) {
+        final StringBuilder sb = new StringBuilder();
+        while(sb.length() < n) {
+            sb.append('x');
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        cache.put("a", ofLength(40));
+        cache.put("b", ofLength(40));
+        // Access a, so that b is the least recently used
+        assertEquals(40, cache.get("a").length());
+        cache.put("c", ofLength(40));
+        assertNull(cache.get("b"));
+        assertEquals(40, cache.get("a").length());
+        assertEquals(40, cache.get("c").length());
+        assertEquals(80, cache.getTotalBytes());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void testReplaceAndRemove() {
+        cache.put("a", ofLength(40));
+        cache.put("a", ofLength(10));
+        assertEquals(10, cache.getTotalBytes());
+        assertEquals(10, cache.remove("a").length());
+        assertEquals(0, cache.getTotalBytes());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testTooLargeValuesAreNotStored() {
+        cache.put("a", ofLength(40));
+        cache.put("huge", ofLength(101));
+        assertNull(cache.get("huge"));
+        assertEquals(40, cache.getTotalBytes());
+    }
+}
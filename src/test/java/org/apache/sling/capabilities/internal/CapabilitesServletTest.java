@@ -18,18 +18,30 @@
  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
 package org.apache.sling.capabilities.internal;
 
+import com.sun.net.httpserver.HttpServer;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Dictionary;
 import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.observation.ResourceChange;
 import org.apache.sling.capabilities.CapabilitiesSource;
 import org.apache.sling.servlethelpers.MockSlingHttpServletRequest;
 import org.apache.sling.servlethelpers.MockSlingHttpServletResponse;
@@ -43,12 +55,16 @@ import org.apache.sling.testing.resourceresolver.MockResource;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.cm.Configuration;
 import org.osgi.service.cm.ConfigurationAdmin;
+import org.osgi.service.event.Event;
+import org.osgi.service.event.EventConstants;
+import org.osgi.service.event.EventHandler;
 
 public class CapabilitesServletTest {
 
@@ -58,6 +74,7 @@ public class CapabilitesServletTest {
     public final OsgiContext context = new OsgiContext();
     
     private BundleContext bundleContext;
+    private final List<ServiceRegistration<CapabilitiesSource>> sourceRegistrations = new ArrayList<>();
     private ResourceResolver resourceResolver;
     
     // The CapabilitiesServlet must omit capabilities outside of these namespaces
@@ -80,10 +97,9 @@ public class CapabilitesServletTest {
         resourceResolver = MockSling.newResourceResolver(bundleContext);
 
         
+        sourceRegistrations.clear();
         for(CapabilitiesSource src : SOURCES) {
-            // Not sure why both are needed, but tests fails otherwise
-            context.registerService(src);
-            servlet.bindSource(src);
+            sourceRegistrations.add(context.bundleContext().registerService(CapabilitiesSource.class, src, null));
         }
 
         context.registerInjectActivateService(servlet);
@@ -108,7 +124,7 @@ public class CapabilitesServletTest {
 
     @Test
     public void testUnbind() {
-        servlet.unbindSource(SOURCES[0]);
+        sourceRegistrations.get(0).unregister();
         final String expected = (SOURCES.length - 1) + " " + CapabilitiesSource.class.getSimpleName();
         assertTrue("Expecting one source to be removed", servlet.toString().contains(expected));
     }
@@ -136,6 +152,383 @@ public class CapabilitesServletTest {
         assertFalse("Expected X namespace to be omitted", json.containsKey("X"));
     }
     
+    private void createEndpoint(String name, String ... namespacePatterns) throws IOException {
+        final Map<String, Object> props = new HashMap<>();
+        props.put("sling:resourceType", CapabilitiesServlet.RESOURCE_TYPE);
+        if(namespacePatterns.length > 0) {
+            props.put(CapabilitiesServlet.NAMESPACES_PROP, namespacePatterns);
+        }
+        resourceResolver.create(resourceResolver.getResource("/"), name, props);
+    }
+
+    @Test
+    public void testBatch() throws ServletException, IOException {
+        createEndpoint("capsF", "F");
+        createEndpoint("capsFG", "F", "G");
+        createEndpoint("noPatterns");
+        resourceResolver.create(resourceResolver.getResource("/"), "other", Collections.<String, Object>singletonMap("sling:resourceType", "other"));
+
+        final MockSlingHttpServletRequest req = testRequest(true);
+        final Map<String, Object> params = new HashMap<>();
+        params.put(CapabilitiesServlet.BATCH_PATH_PARAM, new String[] { "/capsF", "/capsFG", "/noPatterns", "/other", "/missing" });
+        req.setParameterMap(params);
+        final MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals(200, resp.getStatus());
+
+        final JsonObject batch = Json.createReader(new StringReader(resp.getOutputAsString())).readObject()
+            .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject(JSONCapabilitiesWriter.BATCH_KEY);
+        assertEquals(5, batch.keySet().size());
+        final JsonObject f = batch.getJsonObject("/capsF").getJsonObject(JSONCapabilitiesWriter.DATA_KEY);
+        assertEquals(1, f.keySet().size());
+        assertEquals("VALUE_1_F", f.getJsonObject("F").getString("KEY_1_F"));
+        final JsonObject fg = batch.getJsonObject("/capsFG").getJsonObject(JSONCapabilitiesWriter.DATA_KEY);
+        assertEquals(2, fg.keySet().size());
+        assertEquals("VALUE_42_G", fg.getJsonObject("G").getString("KEY_42_G"));
+        assertEquals(403, batch.getJsonObject("/noPatterns").getInt(JSONCapabilitiesWriter.STATUS_KEY));
+        assertEquals(400, batch.getJsonObject("/other").getInt(JSONCapabilitiesWriter.STATUS_KEY));
+        assertEquals(404, batch.getJsonObject("/missing").getInt(JSONCapabilitiesWriter.STATUS_KEY));
+    }
+
+    @Test
+    public void testFieldsParameter() throws ServletException, IOException {
+        final MockSlingHttpServletRequest req = testRequest(true);
+        req.setParameterMap(Collections.<String, Object>singletonMap(CapabilitiesServlet.FIELDS_PARAM, new String[] { "/G/KEY_42_G" }));
+        final MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals(200, resp.getStatus());
+        final JsonObject json = getData(resp);
+        assertEquals(1, json.keySet().size());
+        assertEquals(1, json.getJsonObject("G").keySet().size());
+        assertEquals("VALUE_42_G", json.getJsonObject("G").getString("KEY_42_G"));
+    }
+
+    @Test
+    public void testInvalidFieldsParameter() throws ServletException, IOException {
+        final MockSlingHttpServletRequest req = testRequest(true);
+        req.setParameterMap(Collections.<String, Object>singletonMap(CapabilitiesServlet.FIELDS_PARAM, "G"));
+        final MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals(400, resp.getStatus());
+    }
+
+    @Test
+    public void testBatchTooManyPaths() throws ServletException, IOException {
+        final String [] paths = new String[CapabilitiesServlet.DEFAULT_BATCH_MAX_PATHS + 1];
+        Arrays.fill(paths, "/caps");
+        final MockSlingHttpServletRequest req = testRequest(true);
+        req.setParameterMap(Collections.<String, Object>singletonMap(CapabilitiesServlet.BATCH_PATH_PARAM, paths));
+        final MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals(400, resp.getStatus());
+    }
+
+    @Test
+    public void testRefusedNamespacePattern() throws ServletException, IOException {
+        final Map<String, Object> props = new HashMap<>();
+        props.put(CapabilitiesServlet.NAMESPACES_PROP, new String[] { "F", "(G+)+" });
+        final MockSlingHttpServletRequest req = new MockSlingHttpServletRequest(resourceResolver);
+        req.setResource(new MockResource("/refused", props, resourceResolver));
+        MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals(500, resp.getStatus());
+    }
+
+    @Test
+    public void testResourceChangeInvalidatesEndpoint() throws ServletException, IOException {
+        // Only endpoints under the observed paths are cached
+        final String path = CapabilitiesServlet.DEFAULT_RESOURCE_PATH + "/caps";
+        final Map<String, Object> props = new HashMap<>();
+        props.put(CapabilitiesServlet.NAMESPACES_PROP, new String[] { "F" });
+        final MockSlingHttpServletRequest req = new MockSlingHttpServletRequest(resourceResolver);
+        req.setResource(new MockResource(path, props, resourceResolver));
+        MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertTrue(getData(resp).containsKey("F"));
+        assertFalse(getData(resp).containsKey("G"));
+
+        // Cached definition is used until the resource changes
+        props.put(CapabilitiesServlet.NAMESPACES_PROP, new String[] { "G" });
+        req.setResource(new MockResource(path, props, resourceResolver));
+        resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertTrue(getData(resp).containsKey("F"));
+
+        servlet.onChange(Collections.singletonList(new ResourceChange(ResourceChange.ChangeType.CHANGED, path, false, null, null, null)));
+        resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertFalse(getData(resp).containsKey("F"));
+        assertTrue(getData(resp).containsKey("G"));
+    }
+
+    private static JsonObject getData(MockSlingHttpServletResponse resp) {
+        final JsonObject rootJson = Json.createReader(new StringReader(resp.getOutputAsString())).readObject();
+        return rootJson.getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject(JSONCapabilitiesWriter.DATA_KEY);
+    }
+
+    @Test
+    public void testSourcesWithDeclaredNamespaceAreNotObtained() throws ServletException, IOException {
+        final AtomicInteger calls = new AtomicInteger();
+        final CapabilitiesSource lazy = new MockSource("Z", 1) {
+            @Override
+            public String getNamespace() {
+                calls.incrementAndGet();
+                return super.getNamespace();
+            }
+        };
+        final Dictionary<String, Object> props = new Hashtable<>();
+        props.put(CapabilitiesSource.NAMESPACE_PROPERTY, "Z");
+        context.bundleContext().registerService(CapabilitiesSource.class, lazy, props);
+
+        // Z is not exposed by this endpoint
+        MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(testRequest(true), resp);
+        assertEquals(200, resp.getStatus());
+        assertFalse(getData(resp).containsKey("Z"));
+        assertEquals("Expecting the Z source to not be called", 0, calls.get());
+
+        // But it's used by this one
+        final Map<String, Object> endpointProps = new HashMap<>();
+        endpointProps.put(CapabilitiesServlet.NAMESPACES_PROP, new String[] { "Z" });
+        final MockSlingHttpServletRequest req = new MockSlingHttpServletRequest(resourceResolver);
+        req.setResource(new MockResource("/capsZ", endpointProps, resourceResolver));
+        resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals("VALUE_0_Z", getData(resp).getJsonObject("Z").getString("KEY_0_Z"));
+    }
+
+    @Test
+    public void testNoServerTimingByDefault() throws ServletException, IOException {
+        final MockSlingHttpServletRequest req = testRequest(true);
+        req.setParameterMap(Collections.<String, Object>singletonMap(CapabilitiesServlet.SERVER_TIMING_PARAM, "true"));
+        MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals(200, resp.getStatus());
+        assertNull("Expecting no Server-Timing header", resp.getHeader(ServerTiming.HEADER));
+    }
+
+    @Test
+    public void testServerTimingHeader() throws ServletException, IOException {
+        final CapabilitiesServlet timed = new CapabilitiesServlet();
+        final Map<String, Object> config = new HashMap<>();
+        config.put("serverTimingEnabled", true);
+        context.registerInjectActivateService(timed, config);
+
+        MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        timed.service(testRequest(true), resp);
+        assertEquals(200, resp.getStatus());
+
+        final String header = resp.getHeader(ServerTiming.HEADER);
+        assertNotNull("Expecting a Server-Timing header", header);
+        for(String metric : new String[] { "ns-F;desc=\"F\"", "ns-G;desc=\"G\"", ServerTiming.FILTER, ServerTiming.SERIALIZE, ServerTiming.TOTAL }) {
+            assertTrue("Expecting " + metric + " in " + header, header.contains(metric));
+        }
+        assertFalse("Expecting X namespace to be omitted", header.contains("ns-X"));
+
+        final JsonObject json = Json.createReader(new StringReader(resp.getOutputAsString())).readObject();
+        assertEquals("VALUE_1_F", json.getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject("data").getJsonObject("F").getString("KEY_1_F"));
+    }
+
+    @Test
+    public void testETag() throws ServletException, IOException {
+        final MockSlingHttpServletRequest other = testRequest(true);
+        other.addHeader(PeerClient.IF_NONE_MATCH, "\"something else\"");
+        MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(other, resp);
+        assertEquals(200, resp.getStatus());
+        final String etag = resp.getHeader(PeerClient.ETAG);
+        assertNotNull("Expecting an ETag header for a conditional request", etag);
+
+        final MockSlingHttpServletRequest req = testRequest(true);
+        req.addHeader(PeerClient.IF_NONE_MATCH, etag);
+        resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals(304, resp.getStatus());
+        assertEquals(etag, resp.getHeader(PeerClient.ETAG));
+        assertEquals("", resp.getOutputAsString());
+
+        final MockSlingHttpServletRequest fromPeer = testRequest(true);
+        fromPeer.addHeader(PeerClient.PEER_HEADER, "true");
+        resp = new MockSlingHttpServletResponse();
+        servlet.service(fromPeer, resp);
+        assertEquals("Expecting an ETag header for a peer", etag, resp.getHeader(PeerClient.ETAG));
+
+        final MockSlingHttpServletRequest asking = testRequest(true);
+        asking.addHeader(CapabilitiesServlet.ETAG_REQUEST_HEADER, "true");
+        resp = new MockSlingHttpServletResponse();
+        servlet.service(asking, resp);
+        assertEquals("Expecting an ETag header when requested", etag, resp.getHeader(PeerClient.ETAG));
+    }
+
+    @Test
+    public void testStreamedWithoutETag() throws ServletException, IOException {
+        final MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(testRequest(true), resp);
+        assertEquals(200, resp.getStatus());
+        assertNull("Expecting no ETag for a non-cacheable response", resp.getHeader(PeerClient.ETAG));
+        final JsonObject json = Json.createReader(new StringReader(resp.getOutputAsString())).readObject();
+        assertEquals("VALUE_1_F", json.getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject("data").getJsonObject("F").getString("KEY_1_F"));
+    }
+
+    @Test
+    public void testETagOnAllResponses() throws ServletException, IOException {
+        final CapabilitiesServlet tagging = new CapabilitiesServlet();
+        context.registerInjectActivateService(tagging, Collections.<String, Object>singletonMap("etagOnAllResponses", true));
+        final MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        tagging.service(testRequest(true), resp);
+        assertEquals(200, resp.getStatus());
+        assertNotNull("Expecting an ETag header", resp.getHeader(PeerClient.ETAG));
+    }
+
+    @Test
+    public void testPeers() throws ServletException, IOException {
+        final String peerJson = "{\"" + JSONCapabilitiesWriter.CAPS_KEY + "\":{\"data\":{\"P\":{\"KEY_P\":[\"VALUE_P\", 42]}}}}";
+        final HttpServer peer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        peer.createContext("/caps.json", x -> {
+            final byte [] bytes = peerJson.getBytes(StandardCharsets.UTF_8);
+            x.sendResponseHeaders(200, bytes.length);
+            try(OutputStream os = x.getResponseBody()) {
+                os.write(bytes);
+            }
+        });
+        peer.start();
+        try {
+            final CapabilitiesServlet aggregating = new CapabilitiesServlet();
+            final Map<String, Object> config = new HashMap<>();
+            config.put("peers", new String[] { "one=http://localhost:" + peer.getAddress().getPort() + "/caps.json" });
+            config.put("peerTimeoutMsec", 5000L);
+            context.registerInjectActivateService(aggregating, config);
+
+            // Peers are only included if the resource requires them
+            MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+            aggregating.service(testRequest(true), resp);
+            assertFalse(Json.createReader(new StringReader(resp.getOutputAsString())).readObject()
+                .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).containsKey(JSONCapabilitiesWriter.PEERS_KEY));
+
+            final Map<String, Object> props = new HashMap<>();
+            props.put(CapabilitiesServlet.NAMESPACES_PROP, NAMESPACE_PATTERNS);
+            props.put(CapabilitiesServlet.PEERS_PROP, true);
+            final MockSlingHttpServletRequest req = new MockSlingHttpServletRequest(resourceResolver);
+            req.setResource(new MockResource("/cluster", props, resourceResolver));
+            resp = new MockSlingHttpServletResponse();
+            aggregating.service(req, resp);
+            assertEquals(200, resp.getStatus());
+
+            final JsonObject caps = Json.createReader(new StringReader(resp.getOutputAsString())).readObject()
+                .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY);
+            assertTrue(caps.getJsonObject("data").containsKey("F"));
+            final JsonObject one = caps.getJsonObject(JSONCapabilitiesWriter.PEERS_KEY).getJsonObject("one");
+            assertEquals("VALUE_P", one.getJsonObject("data").getJsonObject("P").getJsonArray("KEY_P").getString(0));
+            assertEquals(42, one.getJsonObject("data").getJsonObject("P").getJsonArray("KEY_P").getInt(1));
+
+            // Requests from peers do not include peers
+            req.addHeader(PeerClient.PEER_HEADER, "true");
+            resp = new MockSlingHttpServletResponse();
+            aggregating.service(req, resp);
+            assertEquals(200, resp.getStatus());
+            assertFalse(Json.createReader(new StringReader(resp.getOutputAsString())).readObject()
+                .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).containsKey(JSONCapabilitiesWriter.PEERS_KEY));
+        } finally {
+            peer.stop(0);
+        }
+    }
+
+    private void registerSource(String namespace, int lifetimeSeconds) {
+        final Dictionary<String, Object> props = new Hashtable<>();
+        props.put(CapabilitiesSource.NAMESPACE_PROPERTY, namespace);
+        if(lifetimeSeconds >= 0) {
+            props.put(CapabilitiesSource.LIFETIME_PROPERTY, lifetimeSeconds);
+        }
+        context.bundleContext().registerService(CapabilitiesSource.class, new MockSource(namespace, 1), props);
+    }
+
+    private MockSlingHttpServletResponse getWithPatterns(String authType, String ... patterns) throws ServletException, IOException {
+        final Map<String, Object> props = new HashMap<>();
+        props.put(CapabilitiesServlet.NAMESPACES_PROP, patterns);
+        final MockSlingHttpServletRequest req = new MockSlingHttpServletRequest(resourceResolver);
+        req.setAuthType(authType);
+        req.setResource(new MockResource("/caps-" + String.join("-", patterns), props, resourceResolver));
+        final MockSlingHttpServletResponse resp = new MockSlingHttpServletResponse();
+        servlet.service(req, resp);
+        assertEquals(200, resp.getStatus());
+        return resp;
+    }
+
+    @Test
+    public void testCacheHeaders() throws ServletException, IOException {
+        registerSource("L1", 60);
+        registerSource("L2", 30);
+
+        MockSlingHttpServletResponse resp = getWithPatterns(null, "L.*");
+        assertEquals("public, max-age=30", resp.getHeader(CacheHeaders.CACHE_CONTROL));
+        assertEquals("L1 L2", resp.getHeader(CacheHeaders.SURROGATE_KEY));
+        assertEquals("L1,L2", resp.getHeader(CacheHeaders.CACHE_TAG));
+
+        resp = getWithPatterns("BASIC", "L.*");
+        assertEquals("Expecting authenticated output to be private", "private, max-age=30", resp.getHeader(CacheHeaders.CACHE_CONTROL));
+
+        assertNotNull("Expecting an ETag for a cacheable response", resp.getHeader(PeerClient.ETAG));
+
+        resp = getWithPatterns(null, "L1", "F");
+        assertNull("Expecting no max-age as F has no lifetime", resp.getHeader(CacheHeaders.CACHE_CONTROL));
+        assertEquals("F L1", resp.getHeader(CacheHeaders.SURROGATE_KEY));
+    }
+
+    @Test
+    public void testPurgeHints() throws InterruptedException {
+        final List<Event> events = new CopyOnWriteArrayList<>();
+        final EventHandler handler = events::add;
+        context.registerService(EventHandler.class, handler, EventConstants.EVENT_TOPIC, PurgeHintPublisher.PURGE_TOPIC);
+        context.registerInjectActivateService(new PurgeHintPublisher());
+
+        final Dictionary<String, Object> props = new Hashtable<>();
+        props.put(CapabilitiesSource.NAMESPACE_PROPERTY, "P");
+        final ServiceRegistration<CapabilitiesSource> reg = context.bundleContext().registerService(CapabilitiesSource.class, new MockSource("P", 1), props);
+        reg.unregister();
+
+        // The EventAdmin delivers events asynchronously
+        final long timeout = System.currentTimeMillis() + 5000;
+        while(events.size() < 2 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(10);
+        }
+        assertEquals("Expecting purge hints for the source registration and unregistration", 2, events.size());
+        for(Event e : events) {
+            assertEquals(PurgeHintPublisher.PURGE_TOPIC, e.getTopic());
+            assertEquals("P", e.getProperty(PurgeHintPublisher.PURGE_NAMESPACE));
+        }
+    }
+
+    private MockSource registerWithRequirements(String namespace, String requiredPath, String requiredUser) {
+        final Dictionary<String, Object> props = new Hashtable<>();
+        props.put(CapabilitiesSource.NAMESPACE_PROPERTY, namespace);
+        if(requiredPath != null) {
+            props.put(CapabilitiesSource.REQUIRED_PATH_PROPERTY, requiredPath);
+        }
+        if(requiredUser != null) {
+            props.put(CapabilitiesSource.REQUIRED_USER_PROPERTY, new String[] { requiredUser });
+        }
+        final MockSource src = new MockSource(namespace, 1);
+        context.bundleContext().registerService(CapabilitiesSource.class, src, props);
+        return src;
+    }
+
+    @Test
+    public void testAccessRequirements() throws ServletException, IOException {
+        resourceResolver.create(resourceResolver.getResource("/"), "visible", null);
+        final MockSource visible = registerWithRequirements("R1", "/visible", null);
+        final MockSource hidden = registerWithRequirements("R2", "/not/here", null);
+        final MockSource otherUser = registerWithRequirements("R3", null, "some-other-user");
+
+        final MockSlingHttpServletResponse resp = getWithPatterns(null, "R.*");
+        assertEquals(200, resp.getStatus());
+        final JsonObject data = Json.createReader(new StringReader(resp.getOutputAsString())).readObject()
+            .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject(JSONCapabilitiesWriter.DATA_KEY);
+        assertEquals("[R1]", data.keySet().toString());
+        assertEquals(1, visible.getInvocations());
+        assertEquals("Expecting sources that are not accessible to be skipped without calling them", 0, hidden.getInvocations());
+        assertEquals(0, otherUser.getInvocations());
+    }
+
     @Test
     public void verifyServiceProperties() throws ServletException, IOException, InvalidSyntaxException {
         final ServiceRegistration reg = bundleContext.registerService(Servlet.class.getName(), servlet, null);
@@ -0,0 +1,262 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.nio.file.AccessDeniedException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class CircuitBreakersTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    /** Source which fails when told to, and counts its invocations */
+    private static class FlakySource implements CapabilitiesSource {
+        boolean failing;
+        int invocations;
+
+        @Override
+        public String getNamespace() {
+            return "FLAKY";
+        }
+
+        @Override
+        public Map<String, Object> getCapabilities(ResourceResolver resolver) {
+            invocations++;
+            if(failing) {
+                throw new IllegalStateException("failure " + invocations);
+            }
+            return Collections.<String, Object>singletonMap("ok", invocations);
+        }
+    }
+
+    private void advanceMsec(long msec) {
+        clock.addAndGet(TimeUnit.MILLISECONDS.toNanos(msec));
+    }
+
+    private static boolean isError(Map<String, Object> result) {
+        return result.containsKey(SourceValues.EXCEPTION_KEY);
+    }
+
+    @Test
+    public void testDisabled() {
+        final FlakySource src = new FlakySource();
+        src.failing = true;
+        for(int i=0; i < 10; i++) {
+            assertTrue(isError(CircuitBreakers.DISABLED.invoke(src, null)));
+        }
+        assertEquals(10, src.invocations);
+    }
+
+    @Test
+    public void testNullCapabilities() {
+        final CapabilitiesSource src = new CapabilitiesSource() {
+            @Override
+            public String getNamespace() {
+                return "NULL";
+            }
+
+            @Override
+            public Map<String, Object> getCapabilities(ResourceResolver resolver) {
+                return null;
+            }
+        };
+        assertTrue(CircuitBreakers.DISABLED.invoke(src, null).isEmpty());
+    }
+
+    @Test
+    public void testBackoffAndProbing() {
+        final CircuitBreakers cb = new CircuitBreakers(2, 100, 350, false, clock::get);
+        final FlakySource src = new FlakySource();
+        src.failing = true;
+
+        // Threshold not reached yet
+        assertTrue(isError(cb.invoke(src, null)));
+        assertTrue(isError(cb.invoke(src, null)));
+        assertEquals(2, src.invocations);
+
+        // Circuit is open, last error is served
+        final Map<String, Object> lastError = cb.invoke(src, null);
+        assertEquals("java.lang.IllegalStateException:failure 2", lastError.get(SourceValues.EXCEPTION_KEY));
+        advanceMsec(99);
+        cb.invoke(src, null);
+        assertEquals(2, src.invocations);
+
+        // Backoff expired, probe fails and doubles the backoff
+        advanceMsec(1);
+        assertTrue(isError(cb.invoke(src, null)));
+        assertEquals(3, src.invocations);
+        advanceMsec(199);
+        cb.invoke(src, null);
+        assertEquals(3, src.invocations);
+        advanceMsec(1);
+        cb.invoke(src, null);
+        assertEquals(4, src.invocations);
+
+        // Backoff is limited by the max value
+        advanceMsec(349);
+        cb.invoke(src, null);
+        assertEquals(4, src.invocations);
+        advanceMsec(1);
+        cb.invoke(src, null);
+        assertEquals(5, src.invocations);
+
+        // Recovery closes the circuit
+        src.failing = false;
+        advanceMsec(350);
+        assertEquals(6, cb.invoke(src, null).get("ok"));
+        assertEquals(7, cb.invoke(src, null).get("ok"));
+    }
+
+    @Test
+    public void testAccessFailuresAreNotCounted() {
+        final CircuitBreakers cb = new CircuitBreakers(2, 1000, 1000, false, clock::get);
+        final AtomicLong invocations = new AtomicLong();
+        final CapabilitiesSource src = new CapabilitiesSource() {
+            @Override
+            public String getNamespace() {
+                return "DENIED";
+            }
+
+            @Override
+            public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+                if(invocations.incrementAndGet() % 2 == 0) {
+                    throw new SecurityException("denied");
+                }
+                throw new IllegalStateException(new AccessDeniedException("/some/path"));
+            }
+        };
+        for(int i=0; i < 5; i++) {
+            assertTrue(isError(cb.invoke(src, null)));
+        }
+        assertEquals("Expecting the circuit to stay closed", 5, invocations.get());
+    }
+
+    @Test
+    public void testIsAccessFailure() {
+        assertTrue(CircuitBreakers.isAccessFailure(new LoginException("no")));
+        assertTrue(CircuitBreakers.isAccessFailure(new RuntimeException(new AccessDeniedException("/x"))));
+        assertFalse(CircuitBreakers.isAccessFailure(new IllegalStateException("broken")));
+    }
+
+    @Test
+    public void testSuccessResetsFailures() {
+        final CircuitBreakers cb = new CircuitBreakers(2, 100, 1000, false, clock::get);
+        final FlakySource src = new FlakySource();
+        for(int i=0; i < 5; i++) {
+            src.failing = true;
+            assertTrue(isError(cb.invoke(src, null)));
+            src.failing = false;
+            assertEquals(i * 2 + 2, cb.invoke(src, null).get("ok"));
+        }
+    }
+
+    @Test
+    public void testReset() {
+        final CircuitBreakers cb = new CircuitBreakers(1, 1000, 1000, false, clock::get);
+        final FlakySource src = new FlakySource();
+        src.failing = true;
+        cb.invoke(src, null);
+        cb.invoke(src, null);
+        assertEquals(1, src.invocations);
+        cb.reset(src.getNamespace());
+        cb.invoke(src, null);
+        assertEquals(2, src.invocations);
+    }
+
+    @Test
+    public void testLastGoodValuePerUser() {
+        final ResourceResolver alice = Mockito.mock(ResourceResolver.class);
+        Mockito.when(alice.getUserID()).thenReturn("alice");
+        final ResourceResolver bob = Mockito.mock(ResourceResolver.class);
+        Mockito.when(bob.getUserID()).thenReturn("bob");
+
+        final CircuitBreakers cb = new CircuitBreakers(1, 1000, 1000, true, clock::get);
+        final FlakySource src = new FlakySource();
+        assertEquals(1, cb.invoke(src, alice).get("ok"));
+
+        src.failing = true;
+        assertTrue(isError(cb.invoke(src, alice)));
+        assertEquals(2, src.invocations);
+
+        // Circuit is open: alice gets her last good value, bob an error
+        assertEquals(1, cb.invoke(src, alice).get("ok"));
+        assertTrue(isError(cb.invoke(src, bob)));
+        assertEquals(2, src.invocations);
+    }
+
+    @Test
+    public void testLastErrorPerUser() {
+        final ResourceResolver alice = Mockito.mock(ResourceResolver.class);
+        Mockito.when(alice.getUserID()).thenReturn("alice");
+        final ResourceResolver bob = Mockito.mock(ResourceResolver.class);
+        Mockito.when(bob.getUserID()).thenReturn("bob");
+
+        final CircuitBreakers cb = new CircuitBreakers(1, 1000, 1000, false, clock::get);
+        final FlakySource src = new FlakySource();
+        src.failing = true;
+        assertTrue(isError(cb.invoke(src, alice)));
+
+        // Circuit is open: alice gets her last error, bob a generic one
+        assertEquals("java.lang.IllegalStateException:failure 1", cb.invoke(src, alice).get(SourceValues.EXCEPTION_KEY));
+        final Object bobsError = cb.invoke(src, bob).get(SourceValues.EXCEPTION_KEY);
+        assertEquals("Circuit open for namespace FLAKY after 1 consecutive failures", bobsError);
+        assertEquals(1, src.invocations);
+    }
+
+    @Test
+    public void testProbingResetAfterError() {
+        final CircuitBreakers cb = new CircuitBreakers(1, 100, 100, false, clock::get);
+        final FlakySource src = new FlakySource() {
+            @Override
+            public Map<String, Object> getCapabilities(ResourceResolver resolver) {
+                if(invocations == 1) {
+                    invocations++;
+                    throw new StackOverflowError("probe");
+                }
+                return super.getCapabilities(resolver);
+            }
+        };
+        src.failing = true;
+        assertTrue(isError(cb.invoke(src, null)));
+
+        advanceMsec(100);
+        try {
+            cb.invoke(src, null);
+            fail("Expecting the probe's Error to be rethrown");
+        } catch(StackOverflowError expected) {
+        }
+        assertEquals(2, src.invocations);
+
+        // The circuit is not stuck in probing mode
+        src.failing = false;
+        assertEquals(3, cb.invoke(src, null).get("ok"));
+    }
+}
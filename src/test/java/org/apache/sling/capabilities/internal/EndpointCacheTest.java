@@ -0,0 +1,141 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.sling.api.resource.Resource;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import org.apache.sling.testing.resourceresolver.MockResource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class EndpointCacheTest {
+
+    private EndpointCache cache;
+    private final List<CapabilitiesSource> sources = new ArrayList<>();
+    private final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+
+    private Resource resource(String path, String ... namespacePatterns) {
+        final Map<String, Object> props = new HashMap<>();
+        if(namespacePatterns.length > 0) {
+            props.put(CapabilitiesServlet.NAMESPACES_PROP, namespacePatterns);
+        }
+        return new MockResource(path, props, resolver);
+    }
+
+    @Before
+    public void setup() {
+        cache = new EndpointCache();
+        sources.add(new MockSource("A", 1));
+        sources.add(new MockSource("B", 1));
+        sources.add(new MockSource("C", 1));
+    }
+
+    @Test
+    public void testDefinitionIsCached() {
+        final EndpointDefinition def = cache.get(resource("/caps", "[AC]"), sources);
+        assertEquals("/caps", def.getPath());
+        assertEquals(2, def.getSources().size());
+        assertEquals("A", def.getSources().get(0).getNamespace());
+        assertEquals("C", def.getSources().get(1).getNamespace());
+
+        // Resource is not read if the definition is cached
+        assertSame(def, cache.get(resource("/caps", "B"), sources));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testMissingNamespacePatterns() {
+        final EndpointDefinition def = cache.get(resource("/caps"), sources);
+        assertNull(def.getNamespacePatterns());
+        assertEquals(0, def.getSources().size());
+    }
+
+    @Test
+    public void testInvalidatePath() {
+        final EndpointDefinition def = cache.get(resource("/caps", "A"), sources);
+        cache.get(resource("/caps2", "A"), sources);
+        cache.invalidate("/caps");
+        assertEquals("Expecting /caps2 to stay cached", 1, cache.size());
+
+        final EndpointDefinition newDef = cache.get(resource("/caps", "B"), sources);
+        assertNotSame(def, newDef);
+        assertEquals("B", newDef.getSources().get(0).getNamespace());
+    }
+
+    @Test
+    public void testInvalidateAncestor() {
+        cache.get(resource("/var/caps/one", "A"), sources);
+        cache.get(resource("/var/caps/two", "A"), sources);
+        cache.get(resource("/var/capsule", "A"), sources);
+        cache.invalidate("/var/caps");
+        assertEquals("Expecting only /var/capsule to stay cached", 1, cache.size());
+        cache.invalidate("/");
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testOnlyObservedPathsAreCached() {
+        cache.setObservedPaths(new String[] { "/var/caps" });
+        final EndpointDefinition observed = cache.get(resource("/var/caps/one", "A"), sources);
+        assertSame(observed, cache.get(resource("/var/caps/one", "A"), sources));
+        final EndpointDefinition other = cache.get(resource("/content/caps", "A"), sources);
+        assertNotSame("Expecting definitions outside of the observed paths to be recomputed",
+            other, cache.get(resource("/content/caps", "A"), sources));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testClear() {
+        cache.get(resource("/caps", "A"), sources);
+        sources.add(new MockSource("AA", 1));
+        cache.clear();
+        assertEquals(2, cache.get(resource("/caps", "A.*"), sources).getSources().size());
+    }
+
+    @Test
+    public void testKeyPatterns() {
+        final Map<String, Object> props = new HashMap<>();
+        props.put(CapabilitiesServlet.NAMESPACES_PROP, new String[] { "A", "B" });
+        props.put(CapabilitiesServlet.KEYS_PROP, new String[] { "A/KEY_.*", "A/other" });
+        final EndpointDefinition def = cache.get(new MockResource("/caps", props, resolver), sources);
+        assertNotNull(def.getKeyFilter("A"));
+        assertTrue(def.getKeyFilter("A").accept("KEY_1_A"));
+        assertTrue(def.getKeyFilter("A").accept("other"));
+        assertFalse(def.getKeyFilter("A").accept("KEY"));
+        assertNull(def.getKeyFilter("B"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidKeyPatterns() {
+        EndpointDefinition.parseKeyPatterns(new String[] { "no_namespace" });
+    }
+}
@@ -0,0 +1,199 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+public class FileIndexTest {
+
+    private Path dir;
+    private FileIndex index;
+
+    @Before
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory(getClass().getSimpleName());
+        write("flags.json", "{\"featureA\":true,\"featureB\":false}");
+        write("api.json", "{\"versions\":[\"1.0\",\"2.0\"],\"current\":{\"major\":2}}");
+        write("notes.txt", "{\"ignored\":true}");
+        index = new FileIndex(dir, new RegexFilter(".*\\.json"));
+        index.loadAll();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        try(Stream<Path> s = Files.walk(dir)) {
+            for(Object p : s.sorted(Comparator.reverseOrder()).toArray()) {
+                Files.delete((Path)p);
+            }
+        }
+    }
+
+    private void write(String name, String json) throws IOException {
+        Files.write(dir.resolve(name), json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Map<?, ?> get(String key) {
+        return (Map<?, ?>)index.getSnapshot().get(key);
+    }
+
+    @Test
+    public void testLoadAll() {
+        assertEquals("[api, flags]", index.getSnapshot().keySet().toString());
+        assertEquals(Boolean.TRUE, get("flags").get("featureA"));
+        assertEquals(Arrays.asList("1.0", "2.0"), get("api").get("versions"));
+        assertEquals(2L, ((Number)((Map<?, ?>)get("api").get("current")).get("major")).longValue());
+        assertEquals(2, index.getParseCount());
+    }
+
+    @Test
+    public void testSnapshotIsOnlyRebuiltAfterChanges() throws IOException {
+        final Map<String, Object> first = index.getSnapshot();
+        assertSame(first, index.getSnapshot());
+
+        write("flags.json", "{\"featureA\":false}");
+        index.fileChanged(Paths.get("flags.json"));
+        assertEquals(Boolean.FALSE, get("flags").get("featureA"));
+        assertFalse(get("flags").containsKey("featureB"));
+    }
+
+    @Test
+    public void testOnlyChangedFileIsParsed() throws IOException {
+        write("flags.json", "{\"featureC\":true}");
+        index.fileChanged(Paths.get("flags.json"));
+        index.fileChanged(Paths.get("notes.txt"));
+        assertEquals(3, index.getParseCount());
+        assertEquals(Boolean.TRUE, get("flags").get("featureC"));
+    }
+
+    @Test
+    public void testInvalidFileKeepsPreviousContent() throws IOException {
+        write("flags.json", "{\"featureA\":");
+        index.fileChanged(Paths.get("flags.json"));
+        assertEquals(Boolean.TRUE, get("flags").get("featureA"));
+
+        write("broken.json", "not json");
+        index.fileChanged(Paths.get("broken.json"));
+        assertEquals("[api, flags]", index.getSnapshot().keySet().toString());
+    }
+
+    @Test
+    public void testFailuresAreLoggedOncePerFile() throws IOException {
+        write("flags.json", "{\"featureA\":");
+        index.fileChanged(Paths.get("flags.json"));
+        index.fileChanged(Paths.get("flags.json"));
+        assertEquals(1, index.getWarningCount());
+
+        write("flags.json", "{\"featureA\":false}");
+        index.fileChanged(Paths.get("flags.json"));
+        write("flags.json", "{\"featureA\":");
+        index.fileChanged(Paths.get("flags.json"));
+        assertEquals("Expecting a new warning after a successful load", 2, index.getWarningCount());
+    }
+
+    @Test
+    public void testDepthLimit() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for(int i=0; i <= FileIndex.MAX_DEPTH; i++) {
+            sb.append("{\"a\":");
+        }
+        sb.append("\"[{ in a string\"");
+        for(int i=0; i <= FileIndex.MAX_DEPTH; i++) {
+            sb.append("}");
+        }
+        write("deep.json", sb.toString());
+        index.fileChanged(Paths.get("deep.json"));
+        assertFalse(index.getSnapshot().containsKey("deep"));
+        assertEquals(1, index.getWarningCount());
+
+        // Brackets in strings do not count
+        FileIndex.checkDepth(sb.substring(sb.indexOf("{", 1)));
+    }
+
+    @Test
+    public void testSameKeyCollision() throws IOException {
+        final FileIndex both = new FileIndex(dir, new RegexFilter(".*\\.json", ".*\\.js"));
+        write("flags.js", "{\"fromJs\":true}");
+        both.loadAll();
+        assertEquals("Expecting the first file by name to win", Boolean.TRUE, ((Map<?, ?>)both.getSnapshot().get("flags")).get("fromJs"));
+        assertEquals(1, both.getWarningCount());
+
+        // Changes to the ignored file are ignored
+        write("flags.json", "{\"featureA\":false}");
+        both.fileChanged(Paths.get("flags.json"));
+        assertEquals(Boolean.TRUE, ((Map<?, ?>)both.getSnapshot().get("flags")).get("fromJs"));
+        assertEquals(1, both.getWarningCount());
+
+        // Deleting the file that provides the key falls back to the other one
+        Files.delete(dir.resolve("flags.js"));
+        both.fileDeleted(Paths.get("flags.js"));
+        assertEquals(Boolean.FALSE, ((Map<?, ?>)both.getSnapshot().get("flags")).get("featureA"));
+    }
+
+    @Test
+    public void testDeletedFile() throws IOException {
+        Files.delete(dir.resolve("api.json"));
+        index.fileDeleted(Paths.get("api.json"));
+        assertEquals("[flags]", index.getSnapshot().keySet().toString());
+    }
+
+    @Test
+    public void testWatcher() throws Exception {
+        final WatchService ws = FileSystems.getDefault().newWatchService();
+        dir.register(ws, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        final Thread t = new Thread(() -> FileCapabilitiesSource.watch(ws, index));
+        t.setDaemon(true);
+        t.start();
+        try {
+            write("new.json", "{\"added\":42}");
+            final long timeout = System.currentTimeMillis() + 30000;
+            List<String> keys = null;
+            while(System.currentTimeMillis() < timeout) {
+                keys = Arrays.asList(index.getSnapshot().keySet().toArray(new String[0]));
+                if(keys.contains("new")) {
+                    break;
+                }
+                Thread.sleep(50);
+            }
+            assertEquals("[api, flags, new]", String.valueOf(keys));
+            assertEquals(42L, ((Number)get("new").get("added")).longValue());
+        } finally {
+            ws.close();
+            t.join(5000);
+        }
+        assertFalse(t.isAlive());
+    }
+}
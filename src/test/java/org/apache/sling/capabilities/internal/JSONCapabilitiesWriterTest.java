@@ -22,12 +22,21 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import org.apache.sling.api.resource.LoginException;
 import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
 import org.apache.sling.capabilities.CapabilitiesSource;
 import static org.junit.Assert.assertEquals;
 import org.junit.BeforeClass;
@@ -37,13 +46,23 @@ import org.mockito.Mockito;
 /** Test the JSONCapabilitiesWriter */
 public class JSONCapabilitiesWriterTest {
 
-    private final RegexFilter namespaceFilter = new RegexFilter(".*");
+    private static final String [] ALL_NAMESPACES = { ".*" };
     private static ResourceResolver resolver;
     private static final String RESOLVER_STRING = "resolver-" + UUID.randomUUID();
 
-    private JsonObject getJson(ResourceResolver resolver, List<CapabilitiesSource> sources, RegexFilter namespaceFilter) throws IOException {
+    /** @return an endpoint with the supplied properties */
+    static EndpointDefinition endpoint(String path, String [] namespacePatterns, String [] keyPatterns, List<CapabilitiesSource> sources) {
+        final Map<String, Object> props = new HashMap<>();
+        props.put(CapabilitiesServlet.NAMESPACES_PROP, namespacePatterns);
+        if(keyPatterns != null) {
+            props.put(CapabilitiesServlet.KEYS_PROP, keyPatterns);
+        }
+        return new EndpointDefinition(path, new ValueMapDecorator(props), sources);
+    }
+
+    private JsonObject getJson(ResourceResolver resolver, List<CapabilitiesSource> sources, String [] namespacePatterns) throws IOException {
         final StringWriter w = new StringWriter();
-        new JSONCapabilitiesWriter().writeJson(resolver, w, sources, namespaceFilter);
+        new JSONCapabilitiesWriter(new RequestContext(resolver)).writeJson(w, endpoint("/caps", namespacePatterns, null, sources), Projection.ALL, null);
         final JsonReader r = Json.createReader(new StringReader(w.toString()));
         final JsonObject rootJson = r.readObject();
         assertEquals("Expecting 1 root key", 1, rootJson.keySet().size());
@@ -51,16 +70,26 @@ public class JSONCapabilitiesWriterTest {
     }
 
     @BeforeClass
-    public static void setupMocks() {
+    public static void setupMocks() throws LoginException {
         resolver = Mockito.mock(ResourceResolver.class);
         Mockito.when(resolver.toString()).thenReturn(RESOLVER_STRING);
+        // Used by sources that run within a latency budget
+        Mockito.when(resolver.clone(null)).thenReturn(resolver);
+    }
+
+    @Test
+    public void testOutputKeys() {
+        // The separate client module parses our output, these keys must stay stable
+        assertEquals("org.apache.sling.capabilities", JSONCapabilitiesWriter.CAPS_KEY);
+        assertEquals("data", JSONCapabilitiesWriter.DATA_KEY);
+        assertEquals("omitted", JSONCapabilitiesWriter.OMITTED_KEY);
     }
 
     @Test
     public void testResolverIsUsed() throws IOException {
         final List<CapabilitiesSource> sources = new ArrayList<>();
         sources.add(new MockSource("A", 2));
-        final JsonObject json = getJson(resolver, sources, namespaceFilter);
+        final JsonObject json = getJson(resolver, sources, ALL_NAMESPACES);
         assertEquals(RESOLVER_STRING, json.getJsonObject("A").getString(ResourceResolver.class.getSimpleName()));
     }
     
@@ -70,7 +99,7 @@ public class JSONCapabilitiesWriterTest {
         sources.add(new MockSource("A", 2));
         sources.add(new MockSource("B", 1));
         
-        final JsonObject json = getJson(resolver, sources, namespaceFilter);
+        final JsonObject json = getJson(resolver, sources, ALL_NAMESPACES);
         
         assertEquals("VALUE_0_A", json.getJsonObject("A").getString("KEY_0_A"));
         assertEquals("VALUE_1_A", json.getJsonObject("A").getString("KEY_1_A"));
@@ -87,7 +116,7 @@ public class JSONCapabilitiesWriterTest {
         sources.add(new MockSource("EXCEPTION", 2));
         sources.add(new MockSource("B", 1));
 
-        final JsonObject json = getJson(resolver, sources, namespaceFilter);
+        final JsonObject json = getJson(resolver, sources, ALL_NAMESPACES);
         
         assertEquals("VALUE_0_A", json.getJsonObject("A").getString("KEY_0_A"));
         assertEquals("java.lang.IllegalArgumentException:Simulating a problem", json.getJsonObject("EXCEPTION").getString("_EXCEPTION_"));
@@ -103,6 +132,213 @@ public class JSONCapabilitiesWriterTest {
         sources.add(new MockSource("another", 2));
         sources.add(new MockSource("duplicate", 1));
 
-        getJson(resolver, sources, namespaceFilter);
+        getJson(resolver, sources, ALL_NAMESPACES);
+    }
+
+    @Test
+    public void testBatchInvokesSourcesOnce() throws IOException {
+        final MockSource a = new MockSource("A", 1);
+        final MockSource b = new MockSource("B", 1);
+        final MockSource c = new MockSource("C", 1);
+        final List<CapabilitiesSource> sources = new ArrayList<>();
+        sources.add(a);
+        sources.add(b);
+        sources.add(c);
+
+        final List<JSONCapabilitiesWriter.BatchEntry> entries = new ArrayList<>();
+        entries.add(new JSONCapabilitiesWriter.BatchEntry("/one", endpoint("/one", new String[] { "A", "B" }, null, sources)));
+        entries.add(new JSONCapabilitiesWriter.BatchEntry("/two", endpoint("/two", new String[] { "B", "C" }, null, sources)));
+        entries.add(new JSONCapabilitiesWriter.BatchEntry("/missing", 404, "Resource not found"));
+
+        final StringWriter w = new StringWriter();
+        new JSONCapabilitiesWriter(new RequestContext(resolver)).writeBatchJson(w, entries, Projection.ALL);
+        final JsonObject batch = Json.createReader(new StringReader(w.toString())).readObject()
+            .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject(JSONCapabilitiesWriter.BATCH_KEY);
+
+        final JsonObject one = batch.getJsonObject("/one").getJsonObject(JSONCapabilitiesWriter.DATA_KEY);
+        assertEquals(2, one.keySet().size());
+        assertEquals("VALUE_0_A", one.getJsonObject("A").getString("KEY_0_A"));
+        assertEquals("VALUE_0_B", one.getJsonObject("B").getString("KEY_0_B"));
+
+        final JsonObject two = batch.getJsonObject("/two").getJsonObject(JSONCapabilitiesWriter.DATA_KEY);
+        assertEquals(2, two.keySet().size());
+        assertEquals("VALUE_0_B", two.getJsonObject("B").getString("KEY_0_B"));
+        assertEquals("VALUE_0_C", two.getJsonObject("C").getString("KEY_0_C"));
+
+        final JsonObject missing = batch.getJsonObject("/missing");
+        assertEquals(404, missing.getInt(JSONCapabilitiesWriter.STATUS_KEY));
+        assertEquals("Resource not found", missing.getString(JSONCapabilitiesWriter.MESSAGE_KEY));
+
+        assertEquals(1, a.getInvocations());
+        assertEquals("Expecting B to be invoked once for both endpoints", 1, b.getInvocations());
+        assertEquals(1, c.getInvocations());
+    }
+
+    private JsonObject getProjectedJson(String [] keyPatterns, String ... fields) throws IOException {
+        final List<CapabilitiesSource> sources = new ArrayList<>();
+        sources.add(new MockSource("A", 3));
+        sources.add(new MockSource("B", 3));
+        sources.add(new MockSource("C", 1));
+        sources.add(new MockSource("EXCEPTION", 1));
+        final EndpointDefinition endpoint = endpoint("/caps", new String[] { ".*" }, keyPatterns, sources);
+        final StringWriter w = new StringWriter();
+        new JSONCapabilitiesWriter(new RequestContext(resolver)).writeJson(w, endpoint, Projection.parse(fields), null);
+        return Json.createReader(new StringReader(w.toString())).readObject()
+            .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject(JSONCapabilitiesWriter.DATA_KEY);
+    }
+
+    @Test
+    public void testKeyPatterns() throws IOException {
+        final JsonObject json = getProjectedJson(new String[] { "A/KEY_[01]_A", "B/KEY_2_B", "EXCEPTION/none" }, (String[])null);
+        assertEquals(4, json.keySet().size());
+        assertEquals(2, json.getJsonObject("A").keySet().size());
+        assertEquals("VALUE_1_A", json.getJsonObject("A").getString("KEY_1_A"));
+        assertEquals(1, json.getJsonObject("B").keySet().size());
+        assertEquals("VALUE_2_B", json.getJsonObject("B").getString("KEY_2_B"));
+        assertEquals("Expecting all keys of C", 2, json.getJsonObject("C").keySet().size());
+        assertEquals("Expecting exceptions to be shown", 1, json.getJsonObject("EXCEPTION").keySet().size());
+    }
+
+    @Test
+    public void testFields() throws IOException {
+        final JsonObject json = getProjectedJson(null, "/A/KEY_0_A", "/A/KEY_2_A", "/A/missing", "/C");
+        assertEquals(2, json.keySet().size());
+        assertEquals(2, json.getJsonObject("A").keySet().size());
+        assertEquals("VALUE_0_A", json.getJsonObject("A").getString("KEY_0_A"));
+        assertEquals("VALUE_2_A", json.getJsonObject("A").getString("KEY_2_A"));
+        assertEquals(2, json.getJsonObject("C").keySet().size());
+    }
+
+    @Test
+    public void testFieldsAndKeyPatterns() throws IOException {
+        final JsonObject json = getProjectedJson(new String[] { "A/KEY_[01]_A" }, "/A/KEY_0_A", "/A/KEY_2_A");
+        assertEquals(1, json.keySet().size());
+        assertEquals(1, json.getJsonObject("A").keySet().size());
+        assertEquals("VALUE_0_A", json.getJsonObject("A").getString("KEY_0_A"));
+    }
+
+    @Test
+    public void testUnselectedSourcesAreNotInvoked() throws IOException {
+        final MockSource a = new MockSource("A", 1);
+        final MockSource b = new MockSource("B", 1);
+        final List<CapabilitiesSource> sources = new ArrayList<>();
+        sources.add(a);
+        sources.add(b);
+        final EndpointDefinition endpoint = endpoint("/caps", new String[] { ".*" }, null, sources);
+        new JSONCapabilitiesWriter(new RequestContext(resolver)).writeJson(new StringWriter(), endpoint, Projection.parse("/B"), null);
+        assertEquals(0, a.getInvocations());
+        assertEquals(1, b.getInvocations());
+    }
+
+    @Test
+    public void testLazyValues() throws IOException {
+        final AtomicInteger computed = new AtomicInteger();
+        final Map<String, Object> values = new HashMap<>();
+        values.put("eager", "E");
+        values.put("lazy", (Supplier<Object>)() -> "L" + computed.incrementAndGet());
+        values.put("skipped", (Supplier<Object>)() -> "S" + computed.incrementAndGet());
+        final EndpointDefinition endpoint = endpoint("/caps", new String[] { ".*" }, null, lazySource(values));
+
+        final JsonObject json = writeLazy(new RequestContext(resolver), endpoint, "/LAZY/eager", "/LAZY/lazy");
+        assertEquals("E", json.getString("eager"));
+        assertEquals("L1", json.getString("lazy"));
+        assertEquals("Expecting skipped value to not be computed", 1, computed.get());
+    }
+
+    @Test
+    public void testFailingLazyValue() throws IOException {
+        final AtomicInteger computed = new AtomicInteger();
+        final Map<String, Object> values = new HashMap<>();
+        values.put("eager", "E");
+        values.put("failing", (Supplier<Object>)() -> {
+            computed.incrementAndGet();
+            throw new IllegalStateException("lazy failure");
+        });
+        final EndpointDefinition endpoint = endpoint("/caps", new String[] { ".*" }, null, lazySource(values));
+        final RequestContext context = new RequestContext(resolver).circuitBreakers(new CircuitBreakers(1, 60000, 60000, false));
+
+        // A failing Supplier is a failure of its source, which opens its circuit
+        for(int i=0; i < 2; i++) {
+            final JsonObject json = writeLazy(context, endpoint, "/LAZY");
+            assertEquals("java.lang.IllegalStateException:lazy failure", json.getString("_EXCEPTION_"));
+        }
+        assertEquals(1, computed.get());
+    }
+
+    @Test
+    public void testLazyValuesInBatch() throws IOException {
+        final AtomicInteger computed = new AtomicInteger();
+        final Map<String, Object> values = new HashMap<>();
+        values.put("one", (Supplier<Object>)() -> "ONE" + computed.incrementAndGet());
+        values.put("two", (Supplier<Object>)() -> "TWO" + computed.incrementAndGet());
+        values.put("three", (Supplier<Object>)() -> "THREE" + computed.incrementAndGet());
+        final List<CapabilitiesSource> sources = lazySource(values);
+
+        final List<JSONCapabilitiesWriter.BatchEntry> entries = new ArrayList<>();
+        entries.add(new JSONCapabilitiesWriter.BatchEntry("/a", endpoint("/a", new String[] { "LAZY" }, new String[] { "LAZY/one" }, sources)));
+        entries.add(new JSONCapabilitiesWriter.BatchEntry("/b", endpoint("/b", new String[] { "LAZY" }, new String[] { "LAZY/one", "LAZY/two" }, sources)));
+
+        final StringWriter w = new StringWriter();
+        new JSONCapabilitiesWriter(new RequestContext(resolver)).writeBatchJson(w, entries, Projection.ALL);
+        final JsonObject batch = Json.createReader(new StringReader(w.toString())).readObject()
+            .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject(JSONCapabilitiesWriter.BATCH_KEY);
+
+        assertEquals("ONE1", batch.getJsonObject("/a").getJsonObject(JSONCapabilitiesWriter.DATA_KEY).getJsonObject("LAZY").getString("one"));
+        final JsonObject b = batch.getJsonObject("/b").getJsonObject(JSONCapabilitiesWriter.DATA_KEY).getJsonObject("LAZY");
+        assertEquals("Expecting values computed for the first endpoint to be reused", "ONE1", b.getString("one"));
+        assertEquals("TWO2", b.getString("two"));
+        assertEquals("Expecting unselected values to not be computed", 2, computed.get());
+    }
+
+    private static List<CapabilitiesSource> lazySource(Map<String, Object> values) {
+        final List<CapabilitiesSource> sources = new ArrayList<>();
+        sources.add(new CapabilitiesSource() {
+            @Override
+            public String getNamespace() {
+                return "LAZY";
+            }
+
+            @Override
+            public Map<String, Object> getCapabilities(ResourceResolver resolver) {
+                return values;
+            }
+        });
+        return sources;
+    }
+
+    private JsonObject writeLazy(RequestContext context, EndpointDefinition endpoint, String ... fields) throws IOException {
+        final StringWriter w = new StringWriter();
+        new JSONCapabilitiesWriter(context).writeJson(w, endpoint, Projection.parse(fields), null);
+        return Json.createReader(new StringReader(w.toString())).readObject()
+            .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY).getJsonObject(JSONCapabilitiesWriter.DATA_KEY).getJsonObject("LAZY");
+    }
+
+    @Test
+    public void testOmittedNamespaces() throws IOException {
+        final List<CapabilitiesSource> sources = new ArrayList<>();
+        sources.add(new MockSource("A", 1));
+        sources.add(new MockSource("SLOW", 1) {
+            @Override
+            public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+                return super.getCapabilities(resolver);
+            }
+        });
+        sources.add(new MockSource("B", 1));
+
+        final ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            final LatencyBudget budget = new LatencyBudget(executor, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200));
+            final StringWriter w = new StringWriter();
+            new JSONCapabilitiesWriter(new RequestContext(resolver).budget(budget)).writeJson(
+                w, endpoint("/caps", ALL_NAMESPACES, null, sources), Projection.ALL, null);
+            final JsonObject caps = Json.createReader(new StringReader(w.toString())).readObject()
+                .getJsonObject(JSONCapabilitiesWriter.CAPS_KEY);
+            assertEquals("VALUE_0_A", caps.getJsonObject("data").getJsonObject("A").getString("KEY_0_A"));
+            assertEquals(1, caps.getJsonObject("data").keySet().size());
+            assertEquals("[\"SLOW\",\"B\"]", caps.getJsonArray(JSONCapabilitiesWriter.OMITTED_KEY).toString());
+        } finally {
+            executor.shutdownNow();
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,106 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import org.junit.Test;
+import org.mockito.Mockito;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JfrEventsTest {
+
+    private final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+
+    private static List<RecordedEvent> record(Runnable r) throws IOException {
+        final Path file = Files.createTempFile(JfrEventsTest.class.getSimpleName(), ".jfr");
+        try {
+            try(Recording recording = new Recording()) {
+                recording.enable(RequestEvent.NAME);
+                recording.enable(SourceInvocationEvent.NAME);
+                recording.start();
+                r.run();
+                recording.stop();
+                recording.dump(file);
+            }
+            final List<RecordedEvent> result = new ArrayList<>();
+            for(RecordedEvent e : RecordingFile.readAllEvents(file)) {
+                if(e.getEventType().getName().startsWith("org.apache.sling.capabilities")) {
+                    result.add(e);
+                }
+            }
+            return result;
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void testDisabledEvents() {
+        assertTrue(JfrEvents.AVAILABLE);
+        assertNull("Expecting no event without a recording", JfrEvents.beginRequest());
+        assertNull("Expecting no event without a recording", JfrEvents.beginSourceInvocation());
+    }
+
+    @Test
+    public void testSourceInvocationEvents() throws IOException {
+        final CapabilitiesSource ok = new MockSource("OK", 3);
+        final CapabilitiesSource failing = new MockSource("EXCEPTION", 3);
+        final List<RecordedEvent> events = record(() -> {
+            final SourceValues values = new SourceValues(new RequestContext(resolver));
+            values.get(ok, null, null);
+            values.get(failing, null, null);
+            values.get(ok, null, null);
+        });
+
+        assertEquals("Expecting one event per source invocation", 2, events.size());
+        final RecordedEvent first = events.get(0);
+        assertEquals("OK", first.getString("namespace"));
+        assertEquals(JfrEvents.OUTCOME_OK, first.getString("outcome"));
+        // MockSource adds a ResourceResolver key
+        assertEquals(4, first.getInt("entries"));
+        final RecordedEvent second = events.get(1);
+        assertEquals("EXCEPTION", second.getString("namespace"));
+        assertEquals(JfrEvents.OUTCOME_ERROR, second.getString("outcome"));
+    }
+
+    @Test
+    public void testRequestEvent() throws IOException {
+        final List<RecordedEvent> events = record(() -> {
+            final Object e = JfrEvents.beginRequest();
+            JfrEvents.endRequest(e, "/caps", false, 2, 3, 1234);
+        });
+        assertEquals(1, events.size());
+        final RecordedEvent e = events.get(0);
+        assertEquals("/caps", e.getString("path"));
+        assertEquals(2, e.getInt("patternCount"));
+        assertEquals(3, e.getInt("namespaces"));
+        assertEquals(1234, e.getLong("bytesWritten"));
+    }
+}
@@ -0,0 +1,169 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.apache.sling.api.resource.LoginException;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyBudgetTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final ResourceResolver resolver = Mockito.mock(ResourceResolver.class);
+    private final ResourceResolver clone = Mockito.mock(ResourceResolver.class);
+
+    /** Source that blocks until released, and records the resolver it gets */
+    private static class BlockingSource implements CapabilitiesSource {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean interrupted;
+        volatile ResourceResolver resolver;
+
+        @Override
+        public String getNamespace() {
+            return "BLOCKING";
+        }
+
+        @Override
+        public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+            this.resolver = resolver;
+            try {
+                release.await(1, TimeUnit.MINUTES);
+            } catch(InterruptedException e) {
+                interrupted = true;
+            } finally {
+                done.countDown();
+            }
+            return Collections.emptyMap();
+        }
+    }
+
+    @Before
+    public void setup() throws LoginException {
+        Mockito.when(resolver.clone(null)).thenReturn(clone);
+    }
+
+    @After
+    public void cleanup() {
+        executor.shutdownNow();
+    }
+
+    private LatencyBudget budget(ExecutorService ex, long budgetMsec) {
+        return new LatencyBudget(ex, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMsec));
+    }
+
+    private SourceValues values(LatencyBudget budget) {
+        return new SourceValues(new RequestContext(resolver).budget(budget));
+    }
+
+    @Test
+    public void testWithinBudget() throws LoginException {
+        final LatencyBudget budget = budget(executor, 5000);
+        final SourceValues v = values(budget);
+        assertEquals("VALUE_0_A", v.get(new MockSource("A", 1), null, null).get("KEY_0_A"));
+        assertEquals("VALUE_0_B", v.get(new MockSource("B", 1), null, null).get("KEY_0_B"));
+        Mockito.verify(resolver, Mockito.times(1)).clone(null);
+        Mockito.verify(clone, Mockito.never()).close();
+        budget.close();
+        Mockito.verify(clone).close();
+        Mockito.verify(resolver, Mockito.never()).close();
+    }
+
+    @Test
+    public void testSlowSourceIsAbandonedAndOthersOmitted() throws InterruptedException {
+        final LatencyBudget budget = budget(executor, 200);
+        final SourceValues v = values(budget);
+        final BlockingSource blocking = new BlockingSource();
+        final MockSource after = new MockSource("AFTER", 1);
+
+        assertNotNull(v.get(new MockSource("BEFORE", 1), null, null));
+        final long start = System.currentTimeMillis();
+        assertNull("Expecting the blocking source to be omitted", v.get(blocking, null, null));
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Expecting to wait at most about the budget, elapsed=" + elapsed, elapsed < 2000);
+
+        assertNull("Expecting sources to be omitted once the budget is exhausted", v.get(after, null, null));
+        assertEquals(0, after.getInvocations());
+        assertNull("Expecting omitted sources to stay omitted", v.get(blocking, null, null));
+
+        // The abandoned source keeps using the clone, which is closed once it's done
+        budget.close();
+        assertSame(clone, blocking.resolver);
+        Mockito.verify(clone, Mockito.never()).close();
+        blocking.release.countDown();
+        assertTrue(blocking.done.await(5, TimeUnit.SECONDS));
+        assertFalse("Expecting the abandoned source to not be interrupted", blocking.interrupted);
+        Mockito.verify(clone, Mockito.timeout(5000)).close();
+    }
+
+    @Test
+    public void testRejectedWhenNoThreadAvailable() throws InterruptedException {
+        final ExecutorService single = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+        try {
+            final BlockingSource blocking = new BlockingSource();
+            final LatencyBudget first = budget(single, 100);
+            assertNull(values(first).get(blocking, null, null));
+            first.close();
+
+            // The abandoned source still uses the only thread
+            final LatencyBudget second = budget(single, 5000);
+            assertNull(values(second).get(new MockSource("A", 1), null, null));
+            assertEquals(1, second.getRejections());
+            assertEquals(0, first.getRejections());
+            second.close();
+
+            blocking.release.countDown();
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDirectInvocationIfCloningFails() throws LoginException {
+        Mockito.when(resolver.clone(null)).thenThrow(new LoginException("cannot clone"));
+        final BlockingSource blocking = new BlockingSource();
+        blocking.release.countDown();
+        assertNotNull(values(budget(executor, 5000)).get(blocking, null, null));
+        assertSame(resolver, blocking.resolver);
+    }
+
+    @Test
+    public void testNoBudget() {
+        final SourceValues v = new SourceValues(new RequestContext(resolver));
+        assertEquals("VALUE_0_A", v.get(new MockSource("A", 1), null, null).get("KEY_0_A"));
+    }
+}
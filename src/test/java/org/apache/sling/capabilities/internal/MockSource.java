@@ -21,6 +21,7 @@ package org.apache.sling.capabilities.internal;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.sling.api.resource.ResourceResolver;
 import org.apache.sling.capabilities.CapabilitiesSource;
 
@@ -28,6 +29,7 @@ class MockSource implements CapabilitiesSource {
 
     private final String namespace;
     private final int propsCount;
+    private final AtomicInteger invocations = new AtomicInteger();
 
     MockSource(String namespace, int propsCount) {
         this.namespace = namespace;
@@ -36,6 +38,7 @@ class MockSource implements CapabilitiesSource {
 
     @Override
     public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+        invocations.incrementAndGet();
         if (namespace.contains("EXCEPTION")) {
             throw new IllegalArgumentException("Simulating a problem");
         }
@@ -51,6 +54,10 @@ class MockSource implements CapabilitiesSource {
         return Collections.unmodifiableMap(props);
     }
 
+    int getInvocations() {
+        return invocations.get();
+    }
+
     @Override
     public String getNamespace() {
         return namespace;
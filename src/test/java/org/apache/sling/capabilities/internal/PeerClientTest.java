@@ -0,0 +1,171 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/** Test the PeerClient against a local stand-in HTTP server */
+public class PeerClientTest {
+
+    private static final String ETAG = "\"v1\"";
+    private static final String JSON = "{\"" + JSONCapabilitiesWriter.CAPS_KEY + "\":{\"" + JSONCapabilitiesWriter.DATA_KEY
+        + "\":{\"A\":{\"KEY_0_A\":\"VALUE_0_A\"}}}}";
+    private static final long TIMEOUT_MSEC = 500;
+
+    private HttpServer server;
+    private final List<String> ifNoneMatch = new CopyOnWriteArrayList<>();
+    private final List<String> peerHeaders = new CopyOnWriteArrayList<>();
+
+    private static void send(HttpExchange x, int status, String body) throws IOException {
+        final byte [] bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        x.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try(OutputStream os = x.getResponseBody()) {
+            os.write(bytes);
+        }
+    }
+
+    @Before
+    public void setup() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/good", x -> {
+            final String inm = x.getRequestHeaders().getFirst(PeerClient.IF_NONE_MATCH);
+            ifNoneMatch.add(String.valueOf(inm));
+            peerHeaders.add(String.valueOf(x.getRequestHeaders().getFirst(PeerClient.PEER_HEADER)));
+            x.getResponseHeaders().add(PeerClient.ETAG, ETAG);
+            if(ETAG.equals(inm)) {
+                send(x, 304, null);
+            } else {
+                send(x, 200, JSON);
+            }
+        });
+        server.createContext("/slow", x -> {
+            try {
+                Thread.sleep(TIMEOUT_MSEC * 4);
+            } catch(InterruptedException ignore) {
+                Thread.currentThread().interrupt();
+            }
+            send(x, 200, JSON);
+        });
+        server.createContext("/error", x -> send(x, 500, "Simulated error"));
+        server.createContext("/invalid", x -> send(x, 200, "{\"something\":\"else\"}"));
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+    }
+
+    @After
+    public void cleanup() {
+        server.stop(0);
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+    private static URI deadPeer() throws IOException {
+        try(ServerSocket s = new ServerSocket(0)) {
+            return URI.create("http://localhost:" + s.getLocalPort() + "/dead");
+        }
+    }
+
+    private static Map<String, PeerClient.PeerResponse> join(Map<String, CompletableFuture<PeerClient.PeerResponse>> futures) {
+        final Map<String, PeerClient.PeerResponse> result = new LinkedHashMap<>();
+        futures.forEach((k, v) -> result.put(k, v.join()));
+        return result;
+    }
+
+    @Test
+    public void testParsePeers() {
+        final Map<String, URI> peers = PeerClient.parsePeers(new String[] { "one=http://one:4502/caps.json", " two = https://two/caps.json" });
+        assertEquals(2, peers.size());
+        assertEquals(URI.create("http://one:4502/caps.json"), peers.get("one"));
+        assertEquals(URI.create("https://two/caps.json"), peers.get("two"));
+        assertTrue(PeerClient.parsePeers(null).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPeerDefinition() {
+        PeerClient.parsePeers(new String[] { "http://one:4502/caps.json" });
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPeerScheme() {
+        PeerClient.parsePeers(new String[] { "one=file:///etc/passwd" });
+    }
+
+    @Test
+    public void testConditionalRequests() {
+        final Map<String, URI> peers = new LinkedHashMap<>();
+        peers.put("good", uri("/good"));
+        final PeerClient client = new PeerClient(peers, TIMEOUT_MSEC);
+
+        for(int i=0; i < 3; i++) {
+            final PeerClient.PeerResponse r = join(client.fetchAll()).get("good");
+            assertNotNull("Expecting data at request " + i, r.data);
+            assertEquals("VALUE_0_A", ((Map<?, ?>)r.data.get("A")).get("KEY_0_A"));
+        }
+        assertEquals("[null, " + ETAG + ", " + ETAG + "]", ifNoneMatch.toString());
+        assertEquals("Expecting requests to identify themselves as coming from a peer", "[true, true, true]", peerHeaders.toString());
+    }
+
+    @Test
+    public void testFailingPeersOnlyDegradeTheirOwnSection() throws IOException {
+        final Map<String, URI> peers = new LinkedHashMap<>();
+        peers.put("slow", uri("/slow"));
+        peers.put("good", uri("/good"));
+        peers.put("error", uri("/error"));
+        peers.put("invalid", uri("/invalid"));
+        peers.put("dead", deadPeer());
+        final PeerClient client = new PeerClient(peers, TIMEOUT_MSEC);
+
+        final long start = System.currentTimeMillis();
+        final Map<String, PeerClient.PeerResponse> result = join(client.fetchAll());
+        final long elapsed = System.currentTimeMillis() - start;
+        assertTrue("Expecting peers to be requested concurrently, elapsed=" + elapsed, elapsed < TIMEOUT_MSEC * 3);
+
+        assertEquals("[slow, good, error, invalid, dead]", result.keySet().toString());
+        assertNotNull(result.get("good").data);
+        assertNull(result.get("slow").data);
+        assertEquals(504, result.get("slow").status);
+        assertEquals(502, result.get("error").status);
+        assertTrue(result.get("error").message.contains("500"));
+        assertEquals(502, result.get("invalid").status);
+        assertEquals(502, result.get("dead").status);
+    }
+}
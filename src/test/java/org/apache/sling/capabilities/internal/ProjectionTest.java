@@ -0,0 +1,77 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ProjectionTest {
+
+    @Test
+    public void testAll() {
+        assertTrue(Projection.ALL.acceptsNamespace("anything"));
+        assertNull(Projection.ALL.getKeys("anything"));
+        assertEquals(Projection.ALL, Projection.parse((String[])null));
+    }
+
+    @Test
+    public void testNamespacesAndKeys() {
+        final Projection p = Projection.parse("/A", "/B/k1", "/B/k2", "/A/ignored");
+        assertTrue(p.acceptsNamespace("A"));
+        assertTrue(p.acceptsNamespace("B"));
+        assertFalse(p.acceptsNamespace("C"));
+        assertNull("Expecting all keys of A", p.getKeys("A"));
+        final Set<String> keys = p.getKeys("B");
+        assertEquals(2, keys.size());
+        assertTrue(keys.contains("k1"));
+        assertTrue(keys.contains("k2"));
+    }
+
+    @Test
+    public void testNamespaceAfterKeys() {
+        final Projection p = Projection.parse("/A/k1", "/A");
+        assertNull("Expecting all keys of A", p.getKeys("A"));
+    }
+
+    @Test
+    public void testEscapes() {
+        final Projection p = Projection.parse("/org.example~1ns/some~0key~1path");
+        assertTrue(p.acceptsNamespace("org.example/ns"));
+        assertTrue(p.getKeys("org.example/ns").contains("some~key/path"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRelativePath() {
+        Projection.parse("A/k1");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEmptyPath() {
+        Projection.parse("/");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooDeep() {
+        Projection.parse("/A/k1/sub");
+    }
+}
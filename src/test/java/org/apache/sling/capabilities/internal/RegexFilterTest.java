@@ -18,7 +18,9 @@
  ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
 package org.apache.sling.capabilities.internal;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import org.junit.Test;
 
@@ -52,4 +54,90 @@ public class RegexFilterTest {
         assertTrue(f.accept("meu"));
         assertFalse(f.accept("c4"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testLiteralValue() {
+        assertEquals("org.apache.sling", RegexFilter.literalValue("org\\.apache\\.sling", 18));
+        assertEquals("a.b", RegexFilter.literalValue("\\Qa.b\\E", 7));
+        assertEquals("zo", RegexFilter.literalValue("zo.*", 2));
+        assertNull(RegexFilter.literalValue("org.apache", 10));
+        assertNull(RegexFilter.literalValue("a\\d", 3));
+        assertNull(RegexFilter.literalValue("[ab]", 4));
+    }
+
+    @Test
+    public void testEscapedLiteral() {
+        RegexFilter f = new RegexFilter("org\\.apache\\.sling");
+        assertTrue(f.accept("org.apache.sling"));
+        assertFalse(f.accept("orgXapacheXsling"));
+        assertFalse(f.accept("org.apache.sling.foo"));
+    }
+
+    @Test
+    public void testPrefix() {
+        RegexFilter f = new RegexFilter("org\\.apache\\..*", "meu");
+        assertTrue(f.accept("org.apache."));
+        assertTrue(f.accept("org.apache.sling"));
+        assertTrue(f.accept("meu"));
+        assertFalse(f.accept("org.apach"));
+        assertFalse(f.accept("com.apache.sling"));
+    }
+
+    @Test
+    public void testRegexFallback() {
+        RegexFilter f = new RegexFilter("org\\.apache\\.(sling|felix)\\.[a-z]+");
+        assertTrue(f.accept("org.apache.felix.utils"));
+        assertFalse(f.accept("org.apache.felix.Utils"));
+    }
+
+    @Test
+    public void testMemoizedResults() {
+        RegexFilter f = new RegexFilter("[ab].*");
+        for(int i=0; i < 3; i++) {
+            assertTrue(f.accept("a0"));
+            assertFalse(f.accept("c4"));
+        }
+    }
+
+    @Test
+    public void testMemoizedResultsAreBounded() {
+        RegexFilter f = new RegexFilter("x[0-9]+");
+        for(int i=0; i < RegexFilter.MAX_MEMOIZED * 2; i++) {
+            assertTrue(f.accept("x" + i));
+            assertFalse(f.accept("y" + i));
+        }
+    }
+
+    @Test
+    public void testNestedQuantifiers() {
+        assertTrue(RegexFilter.hasNestedQuantifiers("(a+)+"));
+        assertTrue(RegexFilter.hasNestedQuantifiers("(a*b)*c"));
+        assertTrue(RegexFilter.hasNestedQuantifiers("((ab)*c)+"));
+        assertTrue(RegexFilter.hasNestedQuantifiers("(x+y){2,}"));
+        assertTrue(RegexFilter.hasNestedQuantifiers("(?:a.*){1,100}"));
+        assertFalse(RegexFilter.hasNestedQuantifiers("(ab)+c*"));
+        assertFalse(RegexFilter.hasNestedQuantifiers("(a*)b+"));
+        assertFalse(RegexFilter.hasNestedQuantifiers("(a+){2}"));
+        assertFalse(RegexFilter.hasNestedQuantifiers("[(a+)]+"));
+        assertFalse(RegexFilter.hasNestedQuantifiers("\\(a+\\)+"));
+        assertFalse(RegexFilter.hasNestedQuantifiers("org\\.apache\\..*"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCatastrophicPatternRefused() {
+        new RegexFilter("ok", "(a+)+b");
+    }
+
+    @Test(timeout = 10000)
+    public void testBoundedMatching() {
+        // Not detected as nested quantifiers, but exponential as well
+        RegexFilter f = new RegexFilter("(a|a)*b");
+        assertTrue(f.accept("aaab"));
+        final StringBuilder sb = new StringBuilder();
+        for(int i=0; i < 64; i++) {
+            sb.append("a");
+        }
+        sb.append("c");
+        assertFalse(f.accept(sb.toString()));
+    }
+}
@@ -0,0 +1,64 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class ServerTimingTest {
+
+    @Test
+    public void testToToken() {
+        assertEquals("org.apache.sling_A_B", ServerTiming.toToken("org.apache.sling/A B"));
+    }
+
+    @Test
+    public void testHeaderValue() {
+        final ServerTiming t = new ServerTiming();
+        t.add(ServerTiming.FILTER, t.start());
+        t.addNamespace("some/\"ns\"", t.start());
+        final String header = t.toHeaderValue();
+        assertTrue(header, header.matches("filter;dur=[0-9]+\\.[0-9]{3}, ns-some__ns_;desc=\"some/\\\\\"ns\\\\\"\";dur=[0-9]+\\.[0-9]{3}"));
+    }
+
+    @Test
+    public void testDurationsAreAccumulated() throws InterruptedException {
+        final ServerTiming t = new ServerTiming();
+        for(int i=0; i < 3; i++) {
+            final long start = t.start();
+            Thread.sleep(2);
+            t.add(ServerTiming.SERIALIZE, start);
+        }
+        final String header = t.toHeaderValue();
+        final double msec = Double.parseDouble(header.substring(header.indexOf("dur=") + 4));
+        assertTrue("Expecting accumulated duration >= 6 msec in " + header, msec >= 6.0);
+    }
+
+    @Test
+    public void testDisabled() {
+        final ServerTiming t = ServerTiming.DISABLED;
+        assertFalse(t.isEnabled());
+        assertEquals(0, t.start());
+        t.add(ServerTiming.TOTAL, t.start());
+        t.addNamespace("ns", t.start());
+        assertEquals("", t.toHeaderValue());
+    }
+}
@@ -0,0 +1,144 @@
+/*~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~
+ ~ Licensed to the Apache Software Foundation (ASF) under one
+ ~ or more contributor license agreements.  See the NOTICE file
+ ~ distributed with this work for additional information
+ ~ regarding copyright ownership.  The ASF licenses this file
+ ~ to you under the Apache License, Version 2.0 (the
+ ~ "License"); you may not use this file except in compliance
+ ~ with the License.  You may obtain a copy of the License at
+ ~
+ ~     http://www.apache.org/licenses/LICENSE-2.0
+ ~
+ ~ Unless required by applicable law or agreed to in writing,
+ ~ software distributed under the License is distributed on an
+ ~ "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ ~ KIND, either express or implied.  See the License for the
+ ~ specific language governing permissions and limitations
+ ~ under the License.
+ ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~*/
+package org.apache.sling.capabilities.internal;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class SnapshotStoreTest {
+
+    private final SnapshotStore store = new SnapshotStore();
+
+    private static Map<String, Object> values(Object ... keyValues) {
+        final Map<String, Object> result = new LinkedHashMap<>();
+        for(int i=0; i < keyValues.length; i += 2) {
+            result.put((String)keyValues[i], keyValues[i + 1]);
+        }
+        return result;
+    }
+
+    @Test
+    public void testSortedLookups() {
+        final Map<String, Object> m = store.compact(values("c", "C", "a", "A", "b", 42));
+        assertEquals(3, m.size());
+        assertEquals("[a, b, c]", m.keySet().toString());
+        assertEquals("A", m.get("a"));
+        assertEquals(42, m.get("b"));
+        assertTrue(m.containsKey("c"));
+        assertFalse(m.containsKey("d"));
+        assertNull(m.get("d"));
+        assertNull(m.get(12));
+        assertEquals(values("a", "A", "b", 42, "c", "C"), m);
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        store.compact(values("a", "A")).put("b", "B");
+    }
+
+    @Test
+    public void testStringsAreShared() {
+        // Separate instances with equal contents
+        final String v1 = new String("sling/servlet");
+        final String v2 = new String("sling/servlet");
+        final Map<String, Object> m1 = store.compact(values("resourceType", v1, "other", "1"));
+        final Map<String, Object> m2 = store.compact(values("resourceType", v2, "other", "2"));
+        assertSame(m1.get("resourceType"), m2.get("resourceType"));
+    }
+
+    @Test
+    public void testEqualSnapshotsAreShared() {
+        final Map<String, Object> m1 = store.compact(values("a", "A", "list", Arrays.asList("x", "y")));
+        final Map<String, Object> m2 = store.compact(values("list", new String[] { "x", "y" }, "a", "A"));
+        assertSame(m1, m2);
+        assertSame(m1, store.compact(m1));
+    }
+
+    @Test
+    public void testStructuralSharing() {
+        final Map<String, Object> nsA = values("k1", "v1");
+        final Map<String, Object> nsB1 = values("k2", "v2");
+        final Map<String, Object> nsB2 = values("k2", "changed");
+
+        final Map<String, Object> s1 = store.compact(values("A", nsA, "B", nsB1));
+        final Map<String, Object> s2 = store.compact(values("A", new HashMap<>(nsA), "B", nsB2));
+        assertSame("Expecting unchanged namespaces to be shared", s1.get("A"), s2.get("A"));
+        assertEquals("v2", ((Map<?, ?>)s1.get("B")).get("k2"));
+        assertEquals("changed", ((Map<?, ?>)s2.get("B")).get("k2"));
+    }
+
+    @Test
+    public void testNestedValues() {
+        final Map<String, Object> m = store.compact(values("list", Arrays.asList(1, values("x", "X")), "array", new int[] { 1, 2 }));
+        final List<?> list = (List<?>)m.get("list");
+        assertEquals(1, list.get(0));
+        assertTrue(list.get(1) instanceof CompactValues);
+        assertEquals(Arrays.asList(1, 2), m.get("array"));
+    }
+
+    @Test
+    public void testSuppliersLeftOut() {
+        final Supplier<String> s = () -> "lazy";
+        final Map<String, Object> m = store.compact(values("s", s, "a", "A"));
+        assertEquals("[a]", m.keySet().toString());
+    }
+
+    @Test
+    public void testIsSnapshotOf() {
+        final Map<String, Object> original = values("a", "A", "array", new int[] { 1, 2 }, "list", Arrays.asList("x", values("y", "Y")));
+        final CompactValues snapshot = store.compact(original);
+        assertFalse("Expecting arrays to not equal their compacted List", snapshot.equals(original));
+        assertTrue(SnapshotStore.isSnapshotOf(snapshot, original));
+        assertTrue(SnapshotStore.isSnapshotOf(snapshot, snapshot));
+
+        original.put("lazy", (Supplier<String>)() -> "lazy");
+        assertTrue("Expecting Suppliers to be ignored", SnapshotStore.isSnapshotOf(snapshot, original));
+
+        original.put("array", new int[] { 1, 3 });
+        assertFalse(SnapshotStore.isSnapshotOf(snapshot, original));
+        original.put("array", new int[] { 1, 2 });
+        original.put("list", Arrays.asList("x", values("y", "Z")));
+        assertFalse(SnapshotStore.isSnapshotOf(snapshot, original));
+        original.put("list", Arrays.asList("x", values("y", "Y")));
+        original.put("b", "B");
+        assertFalse(SnapshotStore.isSnapshotOf(snapshot, original));
+        original.remove("b");
+        original.remove("a");
+        assertFalse(SnapshotStore.isSnapshotOf(snapshot, original));
+    }
+
+    @Test
+    public void testEstimatedBytes() {
+        final CompactValues small = store.compact(values("a", "A"));
+        final CompactValues large = store.compact(values("a", "A", "b", "a much longer value than the other one"));
+        assertTrue(small.getEstimatedBytes() > 0);
+        assertTrue(large.getEstimatedBytes() > small.getEstimatedBytes() + 2 * "a much longer value than the other one".length());
+        assertEquals(0, small.getEstimatedBytes() % 8);
+    }
+}
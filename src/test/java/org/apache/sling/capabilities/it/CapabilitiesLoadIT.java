@@ -0,0 +1,402 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.sling.capabilities.it;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.inject.Inject;
+import javax.servlet.Servlet;
+import org.apache.sling.api.SlingHttpServletRequest;
+import org.apache.sling.api.SlingHttpServletResponse;
+import org.apache.sling.api.resource.AbstractResource;
+import org.apache.sling.api.resource.ResourceMetadata;
+import org.apache.sling.api.resource.ResourceResolver;
+import org.apache.sling.api.resource.ValueMap;
+import org.apache.sling.api.wrappers.ValueMapDecorator;
+import org.apache.sling.capabilities.CapabilitiesSource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.ops4j.pax.exam.Option;
+import org.ops4j.pax.exam.junit.PaxExam;
+import org.ops4j.pax.exam.spi.reactors.ExamReactorStrategy;
+import org.ops4j.pax.exam.spi.reactors.PerClass;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static org.ops4j.pax.exam.CoreOptions.composite;
+import static org.ops4j.pax.exam.CoreOptions.options;
+import static org.ops4j.pax.exam.CoreOptions.propagateSystemProperties;
+
+/** Load test of the CapabilitiesServlet: registers a number of
+ *  CapabilitiesSource services, drives the actual servlet from
+ *  concurrent clients while other sources are being registered
+ *  and unregistered, and reports throughput and latency percentiles.
+ *
+ *  The defaults keep this test short so that it can run as part of
+ *  every build, use the system properties below to run a more
+ *  significant load, for example:
+ *
+ *  mvn verify -Dit.test=CapabilitiesLoadIT -Dcapabilities.loadtest.durationSeconds=60
+ *      -Dcapabilities.loadtest.clients=32 -Dcapabilities.loadtest.sources=200
+ */
+@RunWith(PaxExam.class)
+@ExamReactorStrategy(PerClass.class)
+public class CapabilitiesLoadIT extends CapabilitiesTestSupport {
+
+    private final Logger log = LoggerFactory.getLogger(getClass());
+
+    static final String PROP_PREFIX = "capabilities.loadtest.";
+    static final String SOURCES = PROP_PREFIX + "sources";
+    static final String PAYLOAD_SIZE = PROP_PREFIX + "payloadSize";
+    static final String LATENCY_MSEC = PROP_PREFIX + "latencyMsec";
+    static final String CLIENTS = PROP_PREFIX + "clients";
+    static final String DURATION_SECONDS = PROP_PREFIX + "durationSeconds";
+    static final String CHURN_INTERVAL_MSEC = PROP_PREFIX + "churnIntervalMsec";
+
+    private static final String NAMESPACE_PREFIX = "loadtest.";
+
+    @Inject
+    private BundleContext bundleContext;
+
+    private final List<ServiceRegistration> registrations = new ArrayList<>();
+
+    @Override
+    @org.ops4j.pax.exam.Configuration
+    public Option[] configuration() {
+        return options(
+            composite(super.configuration()),
+            propagateSystemProperties(SOURCES, PAYLOAD_SIZE, LATENCY_MSEC, CLIENTS, DURATION_SECONDS, CHURN_INTERVAL_MSEC)
+        );
+    }
+
+    /** Source with a configurable latency and number of entries */
+    private static class LoadTestSource implements CapabilitiesSource {
+        private final String namespace;
+        private final long latencyMsec;
+        private final Map<String, Object> values = new HashMap<>();
+
+        LoadTestSource(String namespace, int payloadSize, long latencyMsec) {
+            this.namespace = namespace;
+            this.latencyMsec = latencyMsec;
+            for(int i=0; i < payloadSize; i++) {
+                values.put("key_" + i, "value_" + i + "_" + namespace);
+            }
+        }
+
+        @Override
+        public String getNamespace() {
+            return namespace;
+        }
+
+        @Override
+        public Map<String, Object> getCapabilities(ResourceResolver resolver) throws Exception {
+            if(latencyMsec > 0) {
+                Thread.sleep(latencyMsec);
+            }
+            return values;
+        }
+    }
+
+    /** Minimal sling/capabilities Resource, the test doesn't need a repository */
+    private static class CapabilitiesResource extends AbstractResource {
+        private final ValueMap props;
+
+        CapabilitiesResource(String ... namespacePatterns) {
+            final Map<String, Object> m = new HashMap<>();
+            m.put("namespace_patterns", namespacePatterns);
+            props = new ValueMapDecorator(m);
+        }
+
+        @Override
+        public String getPath() {
+            return "/var/capabilities/loadtest";
+        }
+
+        @Override
+        public String getResourceType() {
+            return "sling/capabilities";
+        }
+
+        @Override
+        public String getResourceSuperType() {
+            return null;
+        }
+
+        @Override
+        public ResourceMetadata getResourceMetadata() {
+            return new ResourceMetadata();
+        }
+
+        @Override
+        public ResourceResolver getResourceResolver() {
+            return null;
+        }
+
+        @Override
+        public ValueMap getValueMap() {
+            return props;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <AdapterType> AdapterType adaptTo(Class<AdapterType> type) {
+            if(type == ValueMap.class) {
+                return (AdapterType)props;
+            }
+            return super.adaptTo(type);
+        }
+    }
+
+    /** Writer that counts and discards its output */
+    private static class CountingWriter extends Writer {
+        long count;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Records what the servlet does with a response, as we don't have
+     *  an HTTP stack in this test environment.
+     */
+    private static class ResponseRecorder implements InvocationHandler {
+        int status = 200;
+        final CountingWriter counter = new CountingWriter();
+        final PrintWriter writer = new PrintWriter(counter);
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            final String name = method.getName();
+            if("getWriter".equals(name)) {
+                return writer;
+            } else if("setStatus".equals(name) || "sendError".equals(name)) {
+                status = (Integer)args[0];
+            } else if("getStatus".equals(name)) {
+                return status;
+            }
+            return defaultValue(proxy, method, args);
+        }
+    }
+
+    private static Object defaultValue(Object proxy, Method method, Object[] args) {
+        final String name = method.getName();
+        if("toString".equals(name)) {
+            return proxy.getClass().getSimpleName();
+        } else if("hashCode".equals(name)) {
+            return System.identityHashCode(proxy);
+        } else if("equals".equals(name)) {
+            return proxy == args[0];
+        }
+        final Class<?> t = method.getReturnType();
+        if(t == boolean.class) {
+            return false;
+        } else if(t == int.class) {
+            return 0;
+        } else if(t == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        return Integer.parseInt(System.getProperty(name, String.valueOf(defaultValue)));
+    }
+
+    private ServiceRegistration register(CapabilitiesSource src) {
+        return bundleContext.registerService(CapabilitiesSource.class.getName(), src, null);
+    }
+
+    @Before
+    public void setup() {
+        final int nSources = intProperty(SOURCES, 20);
+        final int payloadSize = intProperty(PAYLOAD_SIZE, 10);
+        final int latency = intProperty(LATENCY_MSEC, 0);
+        for(int i=0; i < nSources; i++) {
+            registrations.add(register(new LoadTestSource(NAMESPACE_PREFIX + "source." + i, payloadSize, latency)));
+        }
+    }
+
+    @After
+    public void cleanup() {
+        for(ServiceRegistration r : registrations) {
+            r.unregister();
+        }
+        registrations.clear();
+    }
+
+    private Servlet getServlet() throws Exception {
+        final ServiceReference[] refs = bundleContext.getServiceReferences(Servlet.class.getName(), "(sling.servlet.resourceTypes=sling/capabilities)");
+        assertTrue("Expecting a single Servlet service", refs != null && refs.length == 1);
+        final Servlet s = (Servlet)bundleContext.getService(refs[0]);
+        assertNotNull("Expecting the CapabilitiesServlet", s);
+        return s;
+    }
+
+    private static long percentile(long [] sortedNanos, double p) {
+        if(sortedNanos.length == 0) {
+            return 0;
+        }
+        final int index = (int)Math.ceil(p / 100.0 * sortedNanos.length) - 1;
+        return sortedNanos[Math.max(0, Math.min(index, sortedNanos.length - 1))];
+    }
+
+    @Test
+    public void testConcurrentLoad() throws Exception {
+        final int nClients = intProperty(CLIENTS, 8);
+        final int durationSeconds = intProperty(DURATION_SECONDS, 3);
+        final int churnInterval = intProperty(CHURN_INTERVAL_MSEC, 10);
+        final int payloadSize = intProperty(PAYLOAD_SIZE, 10);
+
+        final Servlet servlet = getServlet();
+        final CapabilitiesResource resource = new CapabilitiesResource(NAMESPACE_PREFIX.replace(".", "\\.") + ".*");
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong churnCount = new AtomicLong();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(nClients + 1);
+        final List<Future<long[]>> clients = new ArrayList<>();
+        try {
+            // Register and unregister sources while the clients are running
+            final Future<?> churn = executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    while(running.get()) {
+                        final long n = churnCount.incrementAndGet();
+                        final ServiceRegistration r = register(new LoadTestSource(NAMESPACE_PREFIX + "churn." + n, payloadSize, 0));
+                        Thread.sleep(churnInterval);
+                        r.unregister();
+                    }
+                    return null;
+                }
+            });
+
+            for(int i=0; i < nClients; i++) {
+                clients.add(executor.submit(new Callable<long[]>() {
+                    @Override
+                    public long[] call() throws Exception {
+                        long [] latencies = new long[1024];
+                        int count = 0;
+                        while(running.get()) {
+                            final ResponseRecorder recorder = new ResponseRecorder();
+                            final SlingHttpServletResponse response = (SlingHttpServletResponse)Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] { SlingHttpServletResponse.class },
+                                recorder);
+                            final SlingHttpServletRequest request = (SlingHttpServletRequest)Proxy.newProxyInstance(
+                                getClass().getClassLoader(),
+                                new Class<?>[] { SlingHttpServletRequest.class },
+                                new InvocationHandler() {
+                                    @Override
+                                    public Object invoke(Object proxy, Method method, Object[] args) {
+                                        if("getResource".equals(method.getName())) {
+                                            return resource;
+                                        } else if("getMethod".equals(method.getName())) {
+                                            return "GET";
+                                        }
+                                        return defaultValue(proxy, method, args);
+                                    }
+                                });
+
+                            final long start = System.nanoTime();
+                            try {
+                                servlet.service(request, response);
+                            } catch(Exception e) {
+                                errors.incrementAndGet();
+                            }
+                            final long elapsed = System.nanoTime() - start;
+
+                            if(recorder.status != 200) {
+                                errors.incrementAndGet();
+                            }
+                            bytes.addAndGet(recorder.counter.count);
+                            if(count == latencies.length) {
+                                latencies = Arrays.copyOf(latencies, latencies.length * 2);
+                            }
+                            latencies[count++] = elapsed;
+                        }
+                        return Arrays.copyOf(latencies, count);
+                    }
+                }));
+            }
+
+            Thread.sleep(TimeUnit.SECONDS.toMillis(durationSeconds));
+            running.set(false);
+            churn.get();
+
+            long [] all = new long[0];
+            for(Future<long[]> f : clients) {
+                final long [] l = f.get();
+                final int offset = all.length;
+                all = Arrays.copyOf(all, offset + l.length);
+                System.arraycopy(l, 0, all, offset, l.length);
+            }
+            Arrays.sort(all);
+
+            final double throughput = all.length / (double)durationSeconds;
+            log.info(
+                "{} sources, {} clients, {} churned sources in {} seconds: {} requests, {} req/sec, p50={} msec, p99={} msec, max={} msec, {} bytes/request, {} errors",
+                registrations.size(), nClients, churnCount.get(), durationSeconds, all.length,
+                String.format("%.1f", throughput),
+                String.format("%.3f", percentile(all, 50) / 1e6),
+                String.format("%.3f", percentile(all, 99) / 1e6),
+                String.format("%.3f", percentile(all, 100) / 1e6),
+                all.length == 0 ? 0 : bytes.get() / all.length,
+                errors.get());
+
+            assertTrue("Expecting some requests to be executed", all.length > 0);
+            assertEquals("Expecting no errors", 0, errors.get());
+        } finally {
+            running.set(false);
+            executor.shutdownNow();
+        }
+    }
+}